@@ -0,0 +1,359 @@
+package com.hmdp;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillStockShards;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: lemme
+ * @ClassName: SeckillLoadTest
+ * @PackageName: com.hmdp
+ * @Description: 秒杀接口压测
+ * 启动内嵌redis(或者连接指定的redis)和h2, 在随机端口启动应用, 新建一个秒杀券, 由多个虚拟用户并发请求 /voucher-order/seckill/{id}
+ * 每个用户请求 loadtest.repeat 次(检查一人一单), 请求结束后等待订单全部落库, 然后检查超卖、重复下单和丢单
+ * 结果写入json报告(默认 target/loadtest/seckill-report.json), 任何一项检查或门槛不通过时测试失败
+ * 运行: mvn -P loadtest test -Dloadtest.vus=200 -Dloadtest.users=5000 -Dloadtest.stock=1000
+ */
+@Slf4j
+class SeckillLoadTest {
+
+    /**
+     * 并发的虚拟用户(线程)数, 参与秒杀的用户数, 每个用户请求次数, 库存, 库存分片数
+     */
+    private static final int VIRTUAL_USERS = Integer.getInteger("loadtest.vus", 200);
+    private static final int USERS = Integer.getInteger("loadtest.users", 5000);
+    private static final int REPEAT = Integer.getInteger("loadtest.repeat", 2);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 1000);
+    private static final int SHARDS = Integer.getInteger("loadtest.shards", 1);
+    /**
+     * 是否保留限流(默认放开, 只测下单链路), 等待订单落库的最长时间(毫秒)
+     */
+    private static final boolean LIMITER = Boolean.getBoolean("loadtest.limiter");
+    private static final long DRAIN_TIMEOUT = Long.getLong("loadtest.drain-timeout", 60000L);
+    private static final String REPORT = System.getProperty("loadtest.report", "target/loadtest/seckill-report.json");
+    /**
+     * 门槛: 错误率上限, p99延迟上限(毫秒), 吞吐量下限(每秒请求数), 0表示不检查
+     */
+    private static final double MAX_ERROR_RATE = Double.parseDouble(System.getProperty("loadtest.max-error-rate", "0.01"));
+    private static final long MAX_P99_MILLIS = Long.getLong("loadtest.max-p99-ms", 0L);
+    private static final double MIN_THROUGHPUT = Double.parseDouble(System.getProperty("loadtest.min-throughput", "0"));
+
+    private static final long USER_ID_BASE = 1_000_000L;
+
+    private static RedisServer redisServer;
+    private static ConfigurableApplicationContext context;
+    private static String baseUrl;
+
+    @BeforeAll
+    static void start() throws IOException {
+        List<String> properties = new ArrayList<>();
+        properties.add("server.port=0");
+        String redisHost = System.getProperty("loadtest.redis.host");
+        if (redisHost != null) {
+            properties.add("spring.redis.host=" + redisHost);
+            properties.add("spring.redis.port=" + Integer.getInteger("loadtest.redis.port", 6379));
+            properties.add("spring.redis.password=" + System.getProperty("loadtest.redis.password", ""));
+        } else {
+            int redisPort = NetUtil.getUsableLocalPort();
+            redisServer = new RedisServer(redisPort);
+            redisServer.start();
+            properties.add("spring.redis.port=" + redisPort);
+        }
+        context = new SpringApplicationBuilder(HmDianPingApplication.class)
+                .profiles("loadtest")
+                .properties(properties.toArray(new String[0]))
+                .run();
+        baseUrl = "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port");
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (context != null) {
+            context.close();
+        }
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @Test
+    void seckill() throws Exception {
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        SeckillStockShards seckillStockShards = context.getBean(SeckillStockShards.class);
+        if (!LIMITER) {
+            context.getBean(SeckillRateLimiter.class).update(Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2, 0, 0, null);
+        }
+        Long voucherId = createVoucher();
+        if (SHARDS > 1) {
+            seckillStockShards.split(voucherId, SHARDS);
+        }
+        String[] tokens = login(stringRedisTemplate);
+
+        //请求按用户轮转, 同一个用户的重复请求分散在整个压测过程中
+        int total = USERS * REPEAT;
+        long[] latencies = new long[total];
+        Map<String, AtomicInteger> outcomes = new ConcurrentHashMap<>();
+        Map<Long, Long> accepted = new ConcurrentHashMap<>(STOCK * 2);
+        Map<Integer, AtomicInteger> acceptedPerUser = new ConcurrentHashMap<>(STOCK * 2);
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(1);
+        ExecutorService vus = Executors.newFixedThreadPool(VIRTUAL_USERS);
+        List<Future<?>> futures = new ArrayList<>(VIRTUAL_USERS);
+        for (int t = 0; t < VIRTUAL_USERS; t++) {
+            futures.add(vus.submit(() -> {
+                ready.await();
+                int i;
+                while ((i = next.getAndIncrement()) < total) {
+                    int user = i % USERS;
+                    long begin = System.nanoTime();
+                    String outcome;
+                    try {
+                        Result result = seckill(voucherId, tokens[user]);
+                        if (Boolean.TRUE.equals(result.getSuccess())) {
+                            outcome = "success";
+                            accepted.put(Long.valueOf(result.getData().toString()), System.currentTimeMillis());
+                            acceptedPerUser.computeIfAbsent(user, k -> new AtomicInteger()).incrementAndGet();
+                        } else {
+                            outcome = "fail: " + result.getErrorMsg();
+                        }
+                    } catch (IOException e) {
+                        outcome = "error: " + (e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+                    }
+                    latencies[i] = System.nanoTime() - begin;
+                    outcomes.computeIfAbsent(outcome, k -> new AtomicInteger()).incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        long loadBegin = System.nanoTime();
+        ready.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsedNanos = System.nanoTime() - loadBegin;
+        vus.shutdown();
+
+        //等待订单全部落库
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        long drainBegin = System.currentTimeMillis();
+        int dbOrders;
+        while ((dbOrders = voucherOrderService.query().eq("voucher_id", voucherId).count()) < accepted.size()
+                && System.currentTimeMillis() - drainBegin < DRAIN_TIMEOUT) {
+            Thread.sleep(50);
+        }
+        long drainMillis = System.currentTimeMillis() - drainBegin;
+
+        //订单延迟: 落库时间 - 接口返回时间
+        List<Long> lags = new ArrayList<>(accepted.size());
+        for (VoucherOrder order : voucherOrderService.query().select("id", "create_time").eq("voucher_id", voucherId).list()) {
+            Long acceptedAt = accepted.get(order.getId());
+            if (acceptedAt != null && order.getCreateTime() != null) {
+                long createdAt = order.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                lags.add(Math.max(0, createdAt - acceptedAt));
+            }
+        }
+        Collections.sort(lags);
+
+        //一致性检查
+        int dbStock = context.getBean(ISeckillVoucherService.class).getById(voucherId).getStock();
+        long redisStock = (Long) seckillStockShards.stats(voucherId).get("stock");
+        long redisBuyers = 0;
+        int shards = seckillStockShards.shards(voucherId);
+        for (int i = 0; i < shards; i++) {
+            String key = shards > 1 ? SeckillStockShards.orderKey(voucherId, i) : SECKILL_ORDER_KEY + voucherId;
+            Long size = stringRedisTemplate.opsForSet().size(key);
+            redisBuyers += size == null ? 0 : size;
+        }
+        int duplicateUsers = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("user_id").eq("voucher_id", voucherId).groupBy("user_id").having("count(*) > 1")).size();
+        long duplicateAccepted = acceptedPerUser.values().stream().filter(c -> c.get() > 1).count();
+        int errors = outcomes.entrySet().stream()
+                .filter(e -> e.getKey().startsWith("error"))
+                .mapToInt(e -> e.getValue().get()).sum();
+
+        Map<String, Object> checks = new LinkedHashMap<>();
+        checks.put("accepted", accepted.size());
+        checks.put("dbOrders", dbOrders);
+        checks.put("dbStock", dbStock);
+        checks.put("redisStock", redisStock);
+        checks.put("redisBuyers", redisBuyers);
+        checks.put("oversold", accepted.size() > STOCK || dbOrders > STOCK || dbStock < 0 || redisStock < 0);
+        checks.put("stockMismatch", STOCK - dbStock != dbOrders || STOCK - redisStock != redisBuyers);
+        checks.put("duplicateUsers", duplicateUsers);
+        checks.put("duplicateAccepted", duplicateAccepted);
+        checks.put("lostOrders", accepted.size() - dbOrders);
+
+        double seconds = elapsedNanos / 1e9;
+        double throughput = total / seconds;
+        double errorRate = (double) errors / total;
+        Arrays.sort(latencies);
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("mean", toMillis((long) Arrays.stream(latencies).average().orElse(0)));
+        latency.put("p50", toMillis(percentile(latencies, 0.50)));
+        latency.put("p90", toMillis(percentile(latencies, 0.90)));
+        latency.put("p99", toMillis(percentile(latencies, 0.99)));
+        latency.put("p999", toMillis(percentile(latencies, 0.999)));
+        latency.put("max", toMillis(latencies[total - 1]));
+        Map<String, Object> orderLag = new LinkedHashMap<>();
+        orderLag.put("p50", percentile(lags, 0.50));
+        orderLag.put("p99", percentile(lags, 0.99));
+        orderLag.put("max", lags.isEmpty() ? 0 : lags.get(lags.size() - 1));
+        orderLag.put("drainMillis", drainMillis);
+
+        List<String> failures = new ArrayList<>();
+        if (Boolean.TRUE.equals(checks.get("oversold"))) {
+            failures.add("超卖");
+        }
+        if (Boolean.TRUE.equals(checks.get("stockMismatch"))) {
+            failures.add("库存和订单数不一致");
+        }
+        if (duplicateUsers > 0 || duplicateAccepted > 0) {
+            failures.add("重复下单");
+        }
+        if (dbOrders != accepted.size()) {
+            failures.add("订单没有全部落库");
+        }
+        if (errorRate > MAX_ERROR_RATE) {
+            failures.add("错误率 " + errorRate + " > " + MAX_ERROR_RATE);
+        }
+        if (MAX_P99_MILLIS > 0 && percentile(latencies, 0.99) > TimeUnit.MILLISECONDS.toNanos(MAX_P99_MILLIS)) {
+            failures.add("p99延迟 > " + MAX_P99_MILLIS + "ms");
+        }
+        if (MIN_THROUGHPUT > 0 && throughput < MIN_THROUGHPUT) {
+            failures.add("吞吐量 " + (long) throughput + " < " + MIN_THROUGHPUT);
+        }
+
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("virtualUsers", VIRTUAL_USERS);
+        config.put("users", USERS);
+        config.put("repeat", REPEAT);
+        config.put("stock", STOCK);
+        config.put("shards", shards);
+        config.put("limiter", LIMITER);
+        config.put("redis", redisServer != null ? "embedded" : System.getProperty("loadtest.redis.host"));
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("config", config);
+        report.put("requests", total);
+        report.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        report.put("throughput", Math.round(throughput));
+        report.put("errorRate", errorRate);
+        report.put("latencyMillis", latency);
+        report.put("outcomes", new TreeMap<>(outcomes));
+        report.put("checks", checks);
+        report.put("orderLagMillis", orderLag);
+        report.put("passed", failures.isEmpty());
+        report.put("failures", failures);
+        String json = JSONUtil.toJsonPrettyStr(report);
+        FileUtil.writeUtf8String(json, REPORT);
+        log.info("压测报告已写入{}:\n{}", REPORT, json);
+
+        assertTrue(failures.isEmpty(), "压测未通过: " + failures + ", 报告: " + REPORT);
+    }
+
+    /**
+     * 新建一个正在秒杀中的秒杀券
+     */
+    private Long createVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        context.getBean(IVoucherService.class).addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 直接在redis中写入登录信息, 每个用户一个token
+     */
+    private String[] login(StringRedisTemplate stringRedisTemplate) {
+        String[] tokens = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            tokens[i] = UUID.randomUUID().toString(true);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < USERS; i++) {
+                Map<byte[], byte[]> user = new HashMap<>(4);
+                user.put(bytes("id"), bytes(String.valueOf(USER_ID_BASE + i)));
+                user.put(bytes("nickName"), bytes("loadtest" + i));
+                user.put(bytes("icon"), bytes(""));
+                connection.hashCommands().hMSet(bytes(LOGIN_USER_KEY + tokens[i]), user);
+            }
+            return null;
+        });
+        return tokens;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Result seckill(Long voucherId, String token) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/voucher-order/seckill/" + voucherId).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("authorization", token);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(30000);
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            IoUtil.close(connection.getErrorStream());
+            throw new IOException("HTTP " + status);
+        }
+        //读完响应体才能复用连接(keep-alive)
+        try (InputStream in = connection.getInputStream()) {
+            return JSONUtil.toBean(IoUtil.read(in, StandardCharsets.UTF_8), Result.class);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.isEmpty() ? 0 : sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(p * sorted.size()) - 1));
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+}
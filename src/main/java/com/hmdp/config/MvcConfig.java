@@ -1,7 +1,9 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -19,6 +21,8 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.admin-token:}")
+    private String adminToken;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -35,9 +39,14 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/blog/hot",
                         "/user/code",
-                        "/user/login"
+                        "/user/login",
+                        //健康检查
+                        "/actuator/health/**"
                 //order设置优先级, 数字越小越先执行
                 ).order(1);
+        //管理接口拦截器, 除了登录还要校验管理口令. 补库存在 /voucher/** 下面, 不需要登录, 只校验管理口令
+        registry.addInterceptor(new AdminInterceptor(adminToken))
+                .addPathPatterns("/admin/**", "/voucher/seckill/*/stock").order(2);
         //token刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
                 //拦截所有请求
@@ -1,22 +1,25 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 /**
  * 配置Redisson客户端：
+ * 地址和密码使用spring.redis的配置, 和StringRedisTemplate连接同一个redis
  */
 @Configuration
 public class RedissonConfig {
     @Bean
-    public RedissonClient redissonClient(){
+    public RedissonClient redissonClient(RedisProperties redisProperties){
         // 配置
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://192.168.228.101:6379")
-            .setPassword("root");
+        config.useSingleServer().setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort())
+            .setPassword(StrUtil.emptyToNull(redisProperties.getPassword()));
         // 创建RedissonClient对象
         return Redisson.create(config);
     }
@@ -0,0 +1,221 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheWarmUp;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SeckillLifecycle;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillSoldOut;
+import com.hmdp.utils.SeckillStockReconciler;
+import com.hmdp.utils.SeckillStockShards;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARD_CACHE_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARD_MAX;
+
+/**
+ * <p>
+ * 运维监控
+ * 所有接口都需要登录并且带上管理口令(AdminInterceptor)
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheWarmUp cacheWarmUp;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private OrderJournal orderJournal;
+    @Resource
+    private SeckillStockReconciler seckillStockReconciler;
+    @Resource
+    private SeckillLifecycle seckillLifecycle;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    /**
+     * 缓存运行情况: 本地缓存命中率, 布隆过滤器的内存和误判率
+     */
+    @GetMapping("/cache")
+    public Result cacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 某个前缀下key的剩余过期时间分布
+     * @param prefix key前缀, 例如 cache:shop:
+     * @param bucket 每个区间的秒数
+     * @param limit 最多扫描的key数量
+     */
+    @GetMapping("/cache/expiry")
+    public Result cacheExpiry(@RequestParam("prefix") String prefix,
+                              @RequestParam(value = "bucket", defaultValue = "60") Long bucket,
+                              @RequestParam(value = "limit", defaultValue = "10000") Integer limit) {
+        if (bucket <= 0 || limit <= 0) {
+            return Result.fail("参数错误");
+        }
+        return Result.ok(cacheClient.expiryHistogram(prefix, bucket, limit));
+    }
+
+    /**
+     * 启动预热的进度
+     */
+    @GetMapping("/cache/warm-up")
+    public Result cacheWarmUp() {
+        return Result.ok(cacheWarmUp.stats());
+    }
+
+    /**
+     * 当前的热点key, 按访问次数从大到小
+     */
+    @GetMapping("/cache/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.hotKeys());
+    }
+
+    /**
+     * 秒杀订单落库的运行情况: 吞吐量, 批次大小和耗时分布
+     */
+    @GetMapping("/seckill/orders")
+    public Result seckillOrderStats() {
+        return Result.ok(voucherOrderService.orderStats());
+    }
+
+    /**
+     * 本节点的售罄标记, 以及在本地直接拒绝的请求数
+     */
+    @GetMapping("/seckill/sold-out")
+    public Result seckillSoldOut() {
+        return Result.ok(seckillSoldOut.stats());
+    }
+
+    /**
+     * 把秒杀券的库存拆成多个分片, 已经分片时按新的分片数重新拆分, 需要在开售之前执行
+     * @param voucherId 优惠券id
+     * @param count 分片数
+     */
+    @PostMapping("/seckill/{id}/shards")
+    public Result splitSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        if (count < 2 || count > SECKILL_SHARD_MAX) {
+            return Result.fail("分片数必须在2到" + SECKILL_SHARD_MAX + "之间");
+        }
+        if (seckillStockShards.currentShards(voucherId) == count) {
+            return Result.fail("分片数没有变化");
+        }
+        //开售之后拆分, 拆分期间扣减的库存会被覆盖(超卖), 其他节点缓存的分片数也要一段时间才更新
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return Result.fail("秒杀券不存在");
+        }
+        if (!LocalDateTime.now().plus(SECKILL_SHARD_CACHE_TTL, ChronoUnit.MILLIS).isBefore(voucher.getBeginTime())) {
+            return Result.fail("秒杀即将开始或已经开始, 不能分片");
+        }
+        seckillStockShards.split(voucherId, count);
+        return Result.ok(seckillStockShards.stats(voucherId));
+    }
+
+    /**
+     * 秒杀券的剩余库存(分片时包含每个分片)
+     */
+    @GetMapping("/seckill/{id}/stock")
+    public Result seckillStock(@PathVariable("id") Long voucherId) {
+        return Result.ok(seckillStockShards.stats(voucherId));
+    }
+
+    /**
+     * 本地订单日志: 写入和刷盘位置, 检查点, 组提交的大小和刷盘耗时
+     */
+    @GetMapping("/seckill/journal")
+    public Result seckillJournal() {
+        return Result.ok(orderJournal.stats());
+    }
+
+    /**
+     * 秒杀库存对账: 落库延迟, 不一致的秒杀券
+     */
+    @GetMapping("/seckill/reconcile")
+    public Result seckillReconcile() {
+        return Result.ok(seckillStockReconciler.stats());
+    }
+
+    /**
+     * 开启或关闭对账时的自动修复
+     */
+    @PutMapping("/seckill/reconcile")
+    public Result updateSeckillReconcile(@RequestParam("repair") Boolean repair) {
+        seckillStockReconciler.setRepair(repair);
+        return Result.ok(seckillStockReconciler.stats());
+    }
+
+    /**
+     * 秒杀券生命周期: 等待中的预热和清理任务, 已归档的用户数
+     */
+    @GetMapping("/seckill/lifecycle")
+    public Result seckillLifecycle() {
+        return Result.ok(seckillLifecycle.stats());
+    }
+
+    /**
+     * 秒杀限流的配置, 放行和拒绝的请求数
+     */
+    @GetMapping("/seckill/limiter")
+    public Result seckillLimiter() {
+        return Result.ok(seckillRateLimiter.stats());
+    }
+
+    /**
+     * 修改秒杀限流的配置, 所有节点立即生效. 不传的参数保持不变
+     */
+    @PutMapping("/seckill/limiter")
+    public Result updateSeckillLimiter(@RequestParam(value = "localRate", required = false) Integer localRate,
+                                       @RequestParam(value = "localBurst", required = false) Integer localBurst,
+                                       @RequestParam(value = "voucherLimit", required = false) Integer voucherLimit,
+                                       @RequestParam(value = "userLimit", required = false) Integer userLimit,
+                                       @RequestParam(value = "windowMillis", required = false) Long windowMillis) {
+        if (windowMillis != null && windowMillis <= 0) {
+            return Result.fail("窗口大小必须大于0");
+        }
+        seckillRateLimiter.update(localRate, localBurst, voucherLimit, userLimit, windowMillis);
+        return Result.ok(seckillRateLimiter.stats());
+    }
+
+    /**
+     * lua脚本的调用次数和耗时
+     */
+    @GetMapping("/scripts")
+    public Result scriptStats() {
+        return Result.ok(redisScriptRegistry.stats());
+    }
+}
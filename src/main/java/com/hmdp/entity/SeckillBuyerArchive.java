@@ -0,0 +1,41 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 秒杀结束后归档的已下单用户
+ * </p>
+ *
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_seckill_buyer_archive")
+public class SeckillBuyerArchive implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 秒杀优惠券的id
+     */
+    private Long voucherId;
+
+    /**
+     * 抢到秒杀券的用户id
+     */
+    private Long userId;
+
+    /**
+     * 归档时间
+     */
+    private LocalDateTime archiveTime;
+
+
+}
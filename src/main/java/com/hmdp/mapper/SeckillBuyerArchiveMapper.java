@@ -0,0 +1,21 @@
+package com.hmdp.mapper;
+
+import com.hmdp.entity.SeckillBuyerArchive;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * <p>
+ * 秒杀已下单用户归档表 Mapper 接口
+ * </p>
+ *
+ */
+public interface SeckillBuyerArchiveMapper extends BaseMapper<SeckillBuyerArchive> {
+
+    /**
+     * 一条insert语句归档一个秒杀券的多个用户, 已经归档的跳过
+     */
+    int insertIgnoreBatch(@Param("voucherId") Long voucherId, @Param("userIds") List<Long> userIds);
+}
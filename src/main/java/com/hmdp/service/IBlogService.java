@@ -1,9 +1,17 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
 
 public interface IBlogService extends IService<Blog> {
 
+    /**
+     * 热门博文, 按点赞数排序, 并填充作者信息
+     *
+     * @param current 页码
+     * @return 博文列表
+     */
+    Result queryHotBlog(Integer current);
 }
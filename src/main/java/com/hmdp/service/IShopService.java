@@ -19,6 +19,24 @@ public interface IShopService extends IService<Shop> {
      */
     Result queryById(Long id);
 
+    /**
+     * 根据商铺类型分页查询商铺信息
+     * 先分页查id, 再整页批量查询缓存
+     *
+     * @param typeId  商铺类型
+     * @param current 页码
+     * @return 商铺列表
+     */
+    Result queryShopByType(Integer typeId, Integer current);
+
+    /**
+     * 新增商户, 并把id加入布隆过滤器
+     *
+     * @param shop 商铺数据
+     * @return 商铺id
+     */
+    Result saveShop(Shop shop);
+
     /**
      * 更新数据库(保证缓存一致性)
      * 当数据更新,删除缓存(redis中的数据)
@@ -2,8 +2,14 @@ package com.hmdp.service;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.SeckillResult;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -20,9 +26,31 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      */
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 查询当前用户的秒杀订单的处理结果, 可以挂起等待结果
+     *
+     * @param orderId 订单id
+     * @param wait    最长等待时间(毫秒), 0表示不等待
+     */
+    DeferredResult<Result> queryOrderStatus(Long orderId, Long wait);
+
     /**
      * 动态代理,实现事务功能
      *
+     * @return 下单结果
+     */
+    SeckillResult createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 一个事务中批量创建订单
+     *
+     * @param voucherOrders 订单
+     * @return 每个订单的结果(已经存在的订单会被跳过, 结果为成功)
+     */
+    Map<Long, SeckillResult> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 订单落库的运行情况
      */
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    Map<String, Object> orderStats();
 }
@@ -19,4 +19,11 @@ public interface IVoucherService extends IService<Voucher> {
      * @param voucher 优惠券信息，包含秒杀信息
      */
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 补充秒杀券库存
+     * @param voucherId 优惠券id
+     * @param count 补充的数量
+     */
+    Result addSeckillStock(Long voucherId, Integer count);
 }
@@ -8,15 +8,21 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheBloomFilter;
 import com.hmdp.utils.CacheClient;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -24,11 +30,18 @@ import static com.hmdp.utils.RedisConstants.*;
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
-
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    /**
+     * 店铺是热点数据, 开启本地缓存
+     */
+    @PostConstruct
+    private void init() {
+        cacheClient.enableLocalCache(CACHE_SHOP_KEY);
+    }
 
     /**
      * 查询商户信息
@@ -51,6 +64,47 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /**
+     * 根据商铺类型分页查询商铺信息
+     *
+     * @param typeId  商铺类型
+     * @param current 页码
+     * @return 商铺列表
+     */
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current) {
+        // 根据类型分页查询id
+        Page<Shop> page = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 整页批量查询缓存
+        List<Shop> shops = cacheClient.queryManyWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(shops);
+    }
+
+    /**
+     * 新增商户
+     * 新的id要加入布隆过滤器, 否则会被当成不存在的数据拦截
+     *
+     * @param shop 商铺数据
+     * @return 商铺id
+     */
+    @Override
+    @Transactional
+    public Result saveShop(Shop shop) {
+        //写入数据库
+        save(shop);
+        //加入布隆过滤器(事务提交之后)
+        cacheBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 更新商户(保证缓存一致性)
      * 当数据更新,删除缓存(redis中的数据)
@@ -67,9 +121,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //更新数据库
         updateById(shop);
-        //删除缓存
+        //删除缓存(同时广播, 让所有节点删除本地缓存)
         String key = CACHE_SHOP_KEY + id;
-        stringRedisTemplate.delete(key);
+        cacheClient.delete(key);
 
         return Result.ok();
     }
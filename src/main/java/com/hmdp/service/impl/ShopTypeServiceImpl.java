@@ -1,20 +1,19 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
@@ -24,7 +23,7 @@ import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     /**
      * 首页店铺类型
@@ -32,11 +31,10 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     @Override
     public Result queryTypeLists() {
         //从redis中查询商铺类型
-        String shopTypeJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_KEY);
-        if (StrUtil.isNotBlank(shopTypeJson)) {
+        ShopType[] shopTypes = cacheClient.get(CACHE_SHOP_TYPE_KEY, ShopType[].class);
+        if (shopTypes != null && shopTypes.length > 0) {
             //存在,直接返回
-            List<ShopType> shopTypeList = JSONUtil.toList(shopTypeJson, ShopType.class);
-            return Result.ok(shopTypeList);
+            return Result.ok(Arrays.asList(shopTypes));
         }
 
         //不存在,从数据库中查询数据. 并且把查询到的数据,存到redis中(缓存)
@@ -46,7 +44,7 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
         if (shopTypesList.isEmpty()) {
             return Result.fail("店铺类型不存在!");
         }
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_TYPE_KEY, JSONUtil.toJsonStr(shopTypesList));
+        cacheClient.set(CACHE_SHOP_TYPE_KEY, shopTypesList.toArray(new ShopType[0]));
         return Result.ok(shopTypesList);
     }
 }
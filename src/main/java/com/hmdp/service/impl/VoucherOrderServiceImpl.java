@@ -1,34 +1,52 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
 import com.hmdp.dto.Result;
-import com.hmdp.dto.UserDTO;
-import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.utils.Histogram;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderRingBuffer;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillResult;
+import com.hmdp.utils.SeckillSoldOut;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 @Service
 @Slf4j
@@ -41,30 +59,50 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillSoldOut seckillSoldOut;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private OrderJournal orderJournal;
 
     /**
-     * 加载lua脚本
+     * 代理对象(事务), 消费者线程里拿不到AopContext, 注入一个懒加载的代理
      */
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    /**
+     * 读取消息队列的线程
+     */
+    private final ExecutorService seckillOrderExecutor = Executors.newFixedThreadPool(SECKILL_STREAM_CONSUMERS,
+            new ThreadFactoryBuilder().setNamePrefix("seckill-order-").build());
+
+    /**
+     * 订单分区, 每个分区一个线程. 按用户id路由, 同一个用户的订单只会在一个线程中按顺序处理, 不需要分布式锁
+     */
+    private final OrderPartition[] partitions = new OrderPartition[SECKILL_ORDER_PARTITIONS];
+
+    private final ExecutorService partitionExecutor = Executors.newFixedThreadPool(SECKILL_ORDER_PARTITIONS,
+            new ThreadFactoryBuilder().setNamePrefix("seckill-partition-").build());
 
     /**
-     * 创建阻塞队列
-     * 当一个线程尝试从队列中获取元素时,如果没有元素,那么这个线程就会被阻塞,直到队列中有元素,
-     * 被阻塞的线程才会被唤醒,并且获取元素.
+     * 已经分发到分区但还没有确认的消息, 重新处理pending-list时跳过, 防止同一条消息同时在两个分区中
      */
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    private final Set<RecordId> inFlight = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = true;
 
     /**
-     * 线程池
+     * 当前节点的名称, 消费者名称 = 节点名称-线程序号. 重启之后名称不变, 可以接着处理自己没确认的消息
      */
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private final String nodeName = nodeName();
 
     /**
      * 执行线程池
@@ -73,60 +111,407 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        createGroup();
+        replayJournal();
+        for (int i = 0; i < SECKILL_ORDER_PARTITIONS; i++) {
+            partitions[i] = new OrderPartition();
+            partitionExecutor.submit(partitions[i]);
+        }
+        for (int i = 0; i < SECKILL_STREAM_CONSUMERS; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(nodeName + "-" + i, i == 0));
+        }
+        log.info("秒杀订单处理已启动, 节点:{}, 分区数:{}, 消费者数:{}", nodeName, SECKILL_ORDER_PARTITIONS, SECKILL_STREAM_CONSUMERS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdownNow();
+        partitionExecutor.shutdownNow();
+    }
+
+    /**
+     * 创建消费者组, 队列不存在时一起创建. 组已经存在会报错, 忽略
+     */
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(SECKILL_STREAM_KEY.getBytes(StandardCharsets.UTF_8), SECKILL_STREAM_GROUP,
+                            ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            log.debug("消费者组已存在: {}", SECKILL_STREAM_GROUP);
+        }
+    }
+
+    /**
+     * 重新投递本地日志中没有结果的订单(上次运行时redis可能丢失了这些订单消息)
+     * 已经有结果或者已经落库的订单跳过; 重复投递的消息由落库时的去重处理
+     */
+    private void replayJournal() {
+        List<VoucherOrder> orders = orderJournal.takeRecovered();
+        int replayed = 0;
+        for (VoucherOrder order : orders) {
+            try {
+                Integer code = seckillOrderStatus.get(order.getId());
+                if ((code != null && code != SeckillOrderStatus.PENDING) || getById(order.getId()) != null) {
+                    orderJournal.complete(order.getId());
+                    continue;
+                }
+                seckillOrderStatus.pending(order.getId(), order.getUserId());
+                stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(SECKILL_STREAM_KEY).ofMap(orderMessage(order)));
+                replayed++;
+            } catch (Exception e) {
+                //留在日志中, 下次启动再处理
+                log.error("重新投递订单失败, 订单id:{}", order.getId(), e);
+            }
+        }
+        if (!orders.isEmpty()) {
+            log.info("本地日志中未完成的订单:{}, 重新投递:{}", orders.size(), replayed);
+        }
+    }
+
+    private static Map<String, String> orderMessage(VoucherOrder order) {
+        Map<String, String> message = new HashMap<>(4);
+        message.put("userId", order.getUserId().toString());
+        message.put("voucherId", order.getVoucherId().toString());
+        message.put("id", order.getId().toString());
+        return message;
+    }
+
+    /**
+     * 消费者名称: 主机名 + 进程id + 每次启动随机生成的后缀
+     * 同一台机器上的多个实例, 或者同一个实例重启, 都不会和旧的消费者重名(旧消费者未确认的消息由claimIdle认领)
+     */
+    private static String nodeName() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
+        }
+        //RuntimeMXBean的名称格式为 pid@hostname
+        String pid = StrUtil.subBefore(ManagementFactory.getRuntimeMXBean().getName(), "@", false);
+        return host + ":" + pid + ":" + UUID.randomUUID().toString(true).substring(0, 8);
     }
 
     /**
      * 线程任务
-     * 异步执行订单下单
+     * 消费者组中的一个消费者, 从消息队列中批量读取订单, 按用户id分发到分区
+     * 启动时先处理自己的pending-list(上次读取了但没有确认的消息)
      */
     private class VoucherOrderHandler implements Runnable {
+
+        private final Consumer consumer;
+        /**
+         * 是否负责认领其他消费者超时未确认的消息
+         */
+        private final boolean claimer;
+        private long lastPendingTime;
+
+        VoucherOrderHandler(String name, boolean claimer) {
+            this.consumer = Consumer.from(SECKILL_STREAM_GROUP, name);
+            this.claimer = claimer;
+        }
+
         @Override
         public void run() {
-            while (true) {
+            handlePendingList();
+            lastPendingTime = System.currentTimeMillis();
+            while (running) {
                 try {
-                    //获取队列当前的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    //创建订单
-                    handleVoucherOrder(voucherOrder);
+                    //定期重试处理失败的消息
+                    if (System.currentTimeMillis() - lastPendingTime >= SECKILL_STREAM_CLAIM_IDLE) {
+                        lastPendingTime = System.currentTimeMillis();
+                        if (claimer) {
+                            claimIdle();
+                        }
+                        handlePendingList();
+                    }
+                    //获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 500 BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(SECKILL_ORDER_BATCH_SIZE)
+                                    .block(Duration.ofMillis(SECKILL_STREAM_BLOCK)),
+                            StreamOffset.create(SECKILL_STREAM_KEY, ReadOffset.lastConsumed())
+                    );
+                    //判断消息获取是否成功,没有消息,继续下一次循环
+                    if (list == null || list.isEmpty()) {
+                        continue;
+                    }
+                    dispatch(list);
                 } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
                     log.error("处理订单异常", e);
                 }
             }
         }
+
+        /**
+         * 从头到尾处理一遍pending-list中的消息, 仍然失败的留在pending-list中, 下次再试
+         */
+        private void handlePendingList() {
+            String lastId = "0";
+            while (running) {
+                try {
+                    //XREADGROUP GROUP g1 c1 COUNT 10 STREAMS stream.orders 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(SECKILL_STREAM_BATCH),
+                            StreamOffset.create(SECKILL_STREAM_KEY, ReadOffset.from(lastId))
+                    );
+                    if (list == null || list.isEmpty()) {
+                        //pending-list中没有消息
+                        return;
+                    }
+                    dispatch(list);
+                    lastId = list.get(list.size() - 1).getId().getValue();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                    try {
+                        Thread.sleep(SECKILL_STREAM_BLOCK);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 认领其他消费者(可能已经宕机)长时间没有确认的消息, 放到自己的pending-list中处理
+         */
+        private void claimIdle() {
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                    SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, Range.unbounded(), SECKILL_STREAM_BATCH * 10L);
+            List<RecordId> ids = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (!message.getConsumerName().equals(consumer.getName())
+                        && message.getElapsedTimeSinceLastDelivery().toMillis() >= SECKILL_STREAM_CLAIM_IDLE) {
+                    ids.add(message.getId());
+                }
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(SECKILL_STREAM_KEY.getBytes(StandardCharsets.UTF_8),
+                            SECKILL_STREAM_GROUP, consumer.getName(),
+                            RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(SECKILL_STREAM_CLAIM_IDLE))
+                                    .ids(ids.toArray(new RecordId[0]))));
+            if (claimed != null && !claimed.isEmpty()) {
+                log.info("认领超时未确认的订单消息{}条", claimed.size());
+            }
+        }
     }
 
     /**
-     * 代理对象放到当前类中
+     * 按用户id把订单分发到分区, 每个分区一次申请所需的全部槽位
+     * 分区缓冲区满时等待(背压, 暂停读取消息队列)
      */
-    private IVoucherOrderService proxy;
+    private void dispatch(List<MapRecord<String, Object, Object>> list) throws InterruptedException {
+        int[] targets = new int[list.size()];
+        int[] counts = new int[SECKILL_ORDER_PARTITIONS];
+        for (int i = 0; i < list.size(); i++) {
+            MapRecord<String, Object, Object> record = list.get(i);
+            if (!inFlight.add(record.getId())) {
+                //已经在分区中处理
+                targets[i] = -1;
+                continue;
+            }
+            targets[i] = partition(Long.parseLong(record.getValue().get("userId").toString()));
+            counts[targets[i]]++;
+        }
+        for (int p = 0; p < SECKILL_ORDER_PARTITIONS; p++) {
+            if (counts[p] == 0) {
+                continue;
+            }
+            OrderRingBuffer ring = partitions[p].ring;
+            long lo = claim(ring, counts[p]);
+            long seq = lo;
+            for (int i = 0; i < list.size(); i++) {
+                if (targets[i] != p) {
+                    continue;
+                }
+                //解析消息中的订单信息, 直接写入槽位
+                MapRecord<String, Object, Object> record = list.get(i);
+                Map<Object, Object> value = record.getValue();
+                OrderRingBuffer.Slot slot = ring.get(seq++);
+                slot.orderId = Long.parseLong(value.get("id").toString());
+                slot.userId = Long.parseLong(value.get("userId").toString());
+                slot.voucherId = Long.parseLong(value.get("voucherId").toString());
+                slot.recordId = record.getId().getValue();
+            }
+            ring.publish(lo, seq - 1);
+        }
+    }
 
     /**
-     * 创建订单
-     *
-     * @param voucherOrder 队列当前的订单信息
-     * @return
+     * 申请槽位, 缓冲区满时按等待策略一直等到有空间
      */
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //获取用户
-        Long userId = voucherOrder.getUserId();
-        //使用Redisson 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //获取锁
-        boolean isLock = lock.tryLock();
-        if (!isLock) {
-            //获取失败,返回错误或重试
-            log.error("不允许重复下单");
-            return;
+    private long claim(OrderRingBuffer ring, int n) throws InterruptedException {
+        long seq = ring.tryClaim(n);
+        if (seq >= 0) {
+            return seq;
+        }
+        backpressureCount.increment();
+        while ((seq = ring.claim(n, TimeUnit.MILLISECONDS.toNanos(SECKILL_STREAM_BLOCK))) < 0) {
+            if (!running || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            log.warn("订单分区已满, 暂停读取消息队列");
+        }
+        return seq;
+    }
+
+    private static int partition(long userId) {
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), SECKILL_ORDER_PARTITIONS);
+    }
+
+    /**
+     * 一批中的一个订单, 以及对应的消息id
+     */
+    private static class PendingOrder {
+        final RecordId recordId;
+        final VoucherOrder voucherOrder;
+
+        PendingOrder(OrderRingBuffer.Slot slot) {
+            this.recordId = RecordId.of(slot.recordId);
+            this.voucherOrder = voucherOrder(slot.orderId, slot.userId, slot.voucherId);
         }
+    }
+
+    /**
+     * 订单分区, 一个线程从自己的环形缓冲区中凑批落库
+     * 凑批: 等到第一个订单, 之后最多再等 SECKILL_ORDER_BATCH_LINGER 毫秒, 或者凑满 SECKILL_ORDER_BATCH_SIZE 个
+     */
+    private class OrderPartition implements Runnable {
+
+        final OrderRingBuffer ring = new OrderRingBuffer(SECKILL_ORDER_QUEUE_SIZE, SECKILL_ORDER_WAIT_STRATEGY);
+
+        @Override
+        public void run() {
+            List<PendingOrder> batch = new ArrayList<>(SECKILL_ORDER_BATCH_SIZE);
+            java.util.function.Consumer<OrderRingBuffer.Slot> collector = slot -> batch.add(new PendingOrder(slot));
+            while (running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    if (!ring.await(TimeUnit.MILLISECONDS.toNanos(SECKILL_STREAM_BLOCK))) {
+                        continue;
+                    }
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SECKILL_ORDER_BATCH_LINGER);
+                    //先取走已经在缓冲区中的, 不够再等
+                    ring.drain(SECKILL_ORDER_BATCH_SIZE, collector);
+                    while (batch.size() < SECKILL_ORDER_BATCH_SIZE) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0 || !ring.await(remaining)) {
+                            break;
+                        }
+                        ring.drain(SECKILL_ORDER_BATCH_SIZE - batch.size(), collector);
+                    }
+                    handleBatch(batch);
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                } finally {
+                    for (PendingOrder order : batch) {
+                        inFlight.remove(order.recordId);
+                    }
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个事务批量创建订单, 成功后一次确认整批消息
+     * 批量失败(例如某个优惠券库存不够整批扣减)时退回逐条创建, 成功的消息逐条确认
+     */
+    private void handleBatch(List<PendingOrder> batch) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(batch.size());
+        RecordId[] recordIds = new RecordId[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            voucherOrders.add(batch.get(i).voucherOrder);
+            recordIds[i] = batch.get(i).recordId;
+        }
+        long begin = System.currentTimeMillis();
         try {
-            //由于spring的事务是放在threadLocal中, 此时是多线程,事务会失效
-            log.debug("createVoucherOrder..................");
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            //释放锁
-            lock.unlock();
+            Map<Long, SeckillResult> results = proxy.createVoucherOrders(voucherOrders);
+            //先写结果再确认, 写结果失败时消息会被重新处理, 已经落库的订单会被跳过
+            seckillOrderStatus.complete(voucherOrders, results);
+            //ACK确认 SACK stream.orders g1 id1 id2 ...
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, recordIds);
+            batchSizeHistogram.record(batch.size());
+            batchCostHistogram.record(System.currentTimeMillis() - begin);
+            long written = results.values().stream().filter(r -> r == SeckillResult.OK).count();
+            writtenCount.add(written);
+            skippedCount.add(batch.size() - written);
+            return;
+        } catch (Exception e) {
+            fallbackCount.increment();
+            log.warn("批量创建订单失败, 逐条创建, 数量:{}", batch.size(), e);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            VoucherOrder voucherOrder = voucherOrders.get(i);
+            try {
+                //由于spring的事务是放在threadLocal中, 此时是多线程,事务会失效
+                SeckillResult result = proxy.createVoucherOrder(voucherOrder);
+                seckillOrderStatus.complete(Collections.singletonList(voucherOrder),
+                        Collections.singletonMap(voucherOrder.getId(), result));
+            } catch (Exception e) {
+                //留在pending-list中重试, 订单结果仍然是处理中
+                failedCount.increment();
+                log.error("创建订单失败, 订单id:{}", voucherOrder.getId(), e);
+                continue;
+            }
+            //ACK确认 SACK stream.orders g1 id
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, recordIds[i]);
+        }
+    }
+
+    /**
+     * 批次大小, 批量提交耗时(毫秒)
+     */
+    private final Histogram batchSizeHistogram = new Histogram(12);
+    private final Histogram batchCostHistogram = new Histogram(12);
+    /**
+     * 批量写入的订单数, 跳过的重复订单数, 退回逐条创建的批次数, 逐条创建失败的订单数
+     */
+    private final LongAdder writtenCount = new LongAdder();
+    private final LongAdder skippedCount = new LongAdder();
+    private final LongAdder fallbackCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    /**
+     * 分区缓冲区已满, 读取消息的线程需要等待的次数
+     */
+    private final LongAdder backpressureCount = new LongAdder();
+    private final long startTime = System.currentTimeMillis();
+
+    @Override
+    public Map<String, Object> orderStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        stats.put("writtenCount", writtenCount.sum());
+        stats.put("ordersPerSecond", writtenCount.sum() * 1000 / elapsed);
+        stats.put("skippedCount", skippedCount.sum());
+        stats.put("fallbackCount", fallbackCount.sum());
+        stats.put("failedCount", failedCount.sum());
+        stats.put("batchSize", batchSizeHistogram.snapshot());
+        stats.put("batchCostMillis", batchCostHistogram.snapshot());
+        stats.put("inFlight", inFlight.size());
+        stats.put("backpressureCount", backpressureCount.sum());
+        List<Integer> queueDepth = new ArrayList<>(partitions.length);
+        for (OrderPartition partition : partitions) {
+            queueDepth.add(partition == null ? 0 : partition.ring.size());
         }
+        stats.put("partitionQueueDepth", queueDepth);
+        stats.put("statusWaiting", seckillOrderStatus.waiting());
+        return stats;
     }
 
     /**
@@ -137,60 +522,154 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //本地已经标记售罄, 不用再访问redis
+        if (seckillSoldOut.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
+        //限流, 超出的请求直接拒绝
+        String rejected = seckillRateLimiter.tryAcquire(voucherId, userId);
+        if (rejected != null) {
+            return Result.fail(rejected);
+        }
         long orderId = redisIdWorker.nextId("order");
-        //执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+        int shards = seckillStockShards.shards(voucherId);
+        SeckillResult r;
+        if (shards > 1) {
+            //分片库存, 脚本只能访问一个slot, 订单消息由这里发送
+            r = seckillStockShards.seckill(voucherId, userId, shards);
+            if (r == SeckillResult.OK) {
+                //扣减和发消息不在同一个脚本中, 消息发送失败时把库存和资格还回去, 否则这份库存再也卖不出去
+                try {
+                    seckillOrderStatus.pending(orderId, userId);
+                    stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(SECKILL_STREAM_KEY)
+                            .ofMap(orderMessage(voucherOrder(orderId, userId, voucherId))));
+                } catch (RuntimeException e) {
+                    log.error("订单消息发送失败, 归还库存, 优惠券id:{}, 用户id:{}", voucherId, userId, e);
+                    try {
+                        seckillStockShards.release(voucherId, userId, shards);
+                    } catch (RuntimeException releaseError) {
+                        //redis不可用时归还也会失败, 由库存对账释放没有订单的占位
+                        log.error("归还库存失败, 优惠券id:{}, 用户id:{}", voucherId, userId, releaseError);
+                    }
+                    //订单id没有返回给用户, 处理中的状态不会被查询, 随过期时间删除
+                    return Result.fail("系统繁忙, 请稍后再试");
+                }
+            }
+        } else {
+            //执行lua脚本
+            Long result = redisScriptRegistry.execute(
+                    RedisScriptRegistry.SECKILL,
+                    Collections.emptyList(),
+                    voucherId, userId, orderId, SeckillOrderStatus.key(orderId), SECKILL_STATUS_TTL
+            );
+            r = SeckillResult.of(result);
+        }
 
         //判断结果是否有购买资格,也就是是否为0
-        // 0 下单成功 1 库存不足 2 重复下单
-        int r = result.intValue();
-        if (r != 0) {
+        // 0 下单成功 1 库存不足 2 重复下单 3 未开始 4 已结束 5 没有预热
+        if (r != SeckillResult.OK) {
             //不为0,没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            if (r == SeckillResult.NO_STOCK) {
+                seckillSoldOut.markSoldOut(voucherId);
+            }
+            return Result.fail(r.getMessage());
         }
 
-        //为0,有购买资格.  下单信息保存到,阻塞队列中
-        //创建订单
+        //为0,有购买资格. 下单信息已经在lua脚本中发送到消息队列, 由消费者异步创建订单
+        //同时写入本地日志, redis丢失订单消息时由日志重新投递
+        orderJournal.append(voucherOrder(orderId, userId, voucherId));
+        //返回订单id, 用订单id查询下单结果
+        return Result.ok(orderId);
+    }
+
+    private static VoucherOrder voucherOrder(long orderId, Long userId, Long voucherId) {
         VoucherOrder voucherOrder = new VoucherOrder();
-        //订单id
         voucherOrder.setId(orderId);
-        //用户id
         voucherOrder.setUserId(userId);
-        //优惠券id
         voucherOrder.setVoucherId(voucherId);
-        //放入阻塞队列中
-        orderTasks.add(voucherOrder);
+        return voucherOrder;
+    }
 
-        //获取代理对象(事务)
-        proxy = (IVoucherOrderService)AopContext.currentProxy();
-        //返回订单id
-        return Result.ok(orderId);
+    /**
+     * 查询秒杀订单的处理结果, 只能查询自己的订单
+     * 处理中并且wait大于0时挂起请求, 直到结果写入或者超时(超时返回处理中)
+     *
+     * @param orderId 订单id
+     * @param wait    最长等待时间(毫秒)
+     */
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Long wait) {
+        //在请求线程中取出用户, 挂起之后的回调在其他线程中执行, 没有登录用户
+        Long userId = UserHolder.getUser().getId();
+        long timeout = Math.min(Math.max(wait, 0L), SECKILL_STATUS_MAX_WAIT);
+        DeferredResult<Result> deferred = new DeferredResult<>(timeout > 0 ? timeout : null);
+        Integer code = seckillOrderStatus.get(orderId, userId);
+        if (code == null || code != SeckillOrderStatus.PENDING || timeout == 0) {
+            deferred.setResult(orderStatus(orderId, userId, code));
+            return deferred;
+        }
+        Runnable cancel = seckillOrderStatus.await(orderId, c -> deferred.setResult(orderStatus(orderId, userId, c)));
+        deferred.onTimeout(() -> deferred.setResult(orderStatus(orderId, userId, SeckillOrderStatus.PENDING)));
+        deferred.onCompletion(cancel);
+        //注册之前结果可能已经写入
+        code = seckillOrderStatus.get(orderId, userId);
+        if (code == null || code != SeckillOrderStatus.PENDING) {
+            deferred.setResult(orderStatus(orderId, userId, code));
+        }
+        return deferred;
+    }
+
+    /**
+     * 结果编码转换成返回值: status PENDING 处理中, SUCCESS 成功, FAILED 失败(message 为原因)
+     * code 为null时查数据库, 订单不存在或者不属于这个用户都返回订单不存在
+     */
+    private Result orderStatus(Long orderId, Long userId, Integer code) {
+        if (code == null) {
+            //结果已经过期或者不是这个用户的订单, 查数据库
+            VoucherOrder voucherOrder = getById(orderId);
+            if (voucherOrder == null || !userId.equals(voucherOrder.getUserId())) {
+                return Result.fail("订单不存在");
+            }
+            code = SeckillResult.OK.getCode();
+        }
+        Map<String, Object> status = new LinkedHashMap<>(4);
+        status.put("orderId", orderId);
+        if (code == SeckillOrderStatus.PENDING) {
+            status.put("status", "PENDING");
+        } else if (code == SeckillResult.OK.getCode()) {
+            status.put("status", "SUCCESS");
+        } else {
+            status.put("status", "FAILED");
+            status.put("message", SeckillResult.of(code).getMessage());
+        }
+        return Result.ok(status);
     }
 
     /**
-     * 创建订单 用悲观锁实现一人一单  乐观锁实现库存超卖
+     * 创建订单 同一用户的订单只在一个分区线程中串行处理, 实现一人一单  乐观锁实现库存超卖
+     * 消息可能被重复投递(提交之后确认之前宕机), 一人一单的检查同时保证了重复消息不会重复下单
      *
      * @param voucherOrder 优惠券id
      */
     @Override
     @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        //一人一单
-        Long userId = UserHolder.getUser().getId();
+    public SeckillResult createVoucherOrder(VoucherOrder voucherOrder) {
+        //一人一单, 在消费者线程中执行, 没有登录用户, 用户id从订单中取
+        Long userId = voucherOrder.getUserId();
 
+        //重复投递的消息, 订单已经创建
+        if (getById(voucherOrder.getId()) != null) {
+            return SeckillResult.OK;
+        }
         //查询订单
         int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
         //判断是否存在
         if (count > 0) {
             //存在,至少下过一单
             log.error("只能购买一次!");
-            return;
+            return SeckillResult.DUPLICATE;
         }
         //扣减库存 CAS解决超卖
         boolean isSuccess = iSeckillVoucherService.update()
@@ -199,9 +678,77 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .update();
         if (!isSuccess) {
             log.error("库存不足");
-            return;
+            return SeckillResult.NO_STOCK;
         }
         //创建订单
         save(voucherOrder);
+        return SeckillResult.OK;
+    }
+
+    /**
+     * 批量创建订单, 整批在一个事务中
+     * 1. 去掉已经落库的订单(重复投递的消息)和同一用户同一优惠券的重复订单
+     * 2. 每个优惠券只执行一次 stock = stock - n, 库存不够整批扣减时抛出异常, 整批回滚
+     * 3. 一条insert语句写入所有订单
+     *
+     * @param voucherOrders 订单
+     * @return 每个订单的结果, 已经落库的订单为成功, 重复购买的订单为失败
+     */
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public Map<Long, SeckillResult> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Set<Long> orderIds = new HashSet<>();
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderIds.add(voucherOrder.getId());
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        //已经存在的订单id
+        Set<Long> existIds = new HashSet<>(listObjs(
+                new QueryWrapper<VoucherOrder>().select("id").in("id", orderIds),
+                id -> ((Number) id).longValue()));
+        //已经下过单的 用户-优惠券
+        Set<String> bought = new HashSet<>();
+        for (VoucherOrder exist : query().select("user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list()) {
+            bought.add(exist.getUserId() + ":" + exist.getVoucherId());
+        }
+        Map<Long, SeckillResult> results = new LinkedHashMap<>(voucherOrders.size() * 2);
+        List<VoucherOrder> orders = new ArrayList<>(voucherOrders.size());
+        //按优惠券id排序, 多个批次并发扣库存时加锁顺序一致, 避免死锁
+        Map<Long, Integer> stockCounts = new TreeMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (existIds.contains(voucherOrder.getId())) {
+                //重复投递的消息, 订单已经创建
+                results.put(voucherOrder.getId(), SeckillResult.OK);
+                continue;
+            }
+            if (!bought.add(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId())) {
+                log.error("只能购买一次! 订单id:{}", voucherOrder.getId());
+                results.put(voucherOrder.getId(), SeckillResult.DUPLICATE);
+                continue;
+            }
+            results.put(voucherOrder.getId(), SeckillResult.OK);
+            orders.add(voucherOrder);
+            stockCounts.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+        }
+        if (orders.isEmpty()) {
+            return results;
+        }
+        //扣减库存 CAS解决超卖
+        for (Map.Entry<Long, Integer> entry : stockCounts.entrySet()) {
+            boolean isSuccess = iSeckillVoucherService.update()
+                    .setSql("stock = stock - " + entry.getValue())
+                    .eq("voucher_id", entry.getKey()).ge("stock", entry.getValue())
+                    .update();
+            if (!isSuccess) {
+                throw new IllegalStateException("库存不足, 优惠券id:" + entry.getKey());
+            }
+        }
+        //创建订单
+        getBaseMapper().insertBatch(orders);
+        return results;
     }
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.BooleanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,9 +8,14 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillLifecycle;
+import com.hmdp.utils.SeckillSoldOut;
+import com.hmdp.utils.SeckillStockShards;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -24,6 +30,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillLifecycle seckillLifecycle;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -54,5 +66,54 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         //保存秒杀 库存到redis中
         stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId()
                 , voucher.getStock().toString());
+        //保存秒杀时间到redis中, 秒杀脚本判断是否在秒杀时间内
+        seckillStockShards.saveVoucherMeta(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime());
+        //事务提交之后加入预热和清理任务
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                seckillLifecycle.schedule(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime());
+            }
+        });
+    }
+
+    /**
+     * 补充秒杀券库存
+     * 数据库和redis的库存一起增加, 事务提交之后再改redis, 并清除所有节点的售罄标记
+     *
+     * @param voucherId 优惠券id
+     * @param count     补充的数量
+     */
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        boolean isSuccess = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!isSuccess) {
+            return Result.fail("秒杀券不存在");
+        }
+        Integer stock = seckillVoucherService.getById(voucherId).getStock();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                //不用缓存的分片数, 重新拆分后缓存中旧的分片数会把库存加到已经删除的分片上
+                int shards = seckillStockShards.currentShards(voucherId);
+                String key = SECKILL_STOCK_KEY + voucherId;
+                if (shards > 1) {
+                    //分片库存, 平均加到每个分片上
+                    seckillStockShards.addStock(voucherId, count, shards);
+                } else if (!BooleanUtil.isTrue(stringRedisTemplate.opsForValue().setIfAbsent(key, stock.toString()))) {
+                    //redis中还没有库存(没有预热)时直接写入数据库的库存, 否则在redis的库存上增加
+                    stringRedisTemplate.opsForValue().increment(key, count);
+                }
+                seckillSoldOut.clear(voucherId);
+            }
+        });
+        return Result.ok();
     }
 }
@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * @Author: lemme
+ * @ClassName: AdminInterceptor
+ * @PackageName: com.hmdp.utils
+ * @Description: 管理接口拦截器
+ * 管理接口(补库存等)只看登录状态不够, 请求头中必须带上配置的管理口令(hmdp.admin-token)
+ * 没有配置口令时拒绝所有管理请求
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final byte[] adminToken;
+
+    public AdminInterceptor(String adminToken) {
+        this.adminToken = StrUtil.isBlank(adminToken) ? null : adminToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        String token = request.getHeader("admin-token");
+        //逐字节比较完再返回, 不让耗时暴露口令前缀
+        if (adminToken == null || token == null
+                || !MessageDigest.isEqual(adminToken, token.getBytes(StandardCharsets.UTF_8))) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
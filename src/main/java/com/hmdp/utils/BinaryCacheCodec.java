@@ -0,0 +1,326 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @Author: lemme
+ * @ClassName: BinaryCacheCodec
+ * @PackageName: com.hmdp.utils
+ * @Description: 按固定字段顺序手写的二进制编码, 不用反射, 也没有字段名
+ * 只支持注册了Schema的类型(以及它们的数组), 字段有变化时要换一个新的版本号
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte VERSION = 2;
+
+    /**
+     * 字段布局: 按顺序写入/读取每个字段
+     */
+    public interface Schema<T> {
+        void write(Output out, T value);
+
+        T read(Input in);
+    }
+
+    private final Map<Class<?>, Schema<?>> schemas = new HashMap<>();
+
+    public BinaryCacheCodec() {
+        register(Shop.class, new Schema<Shop>() {
+            @Override
+            public void write(Output out, Shop shop) {
+                out.writeLong(shop.getId());
+                out.writeString(shop.getName());
+                out.writeLong(shop.getTypeId());
+                out.writeString(shop.getImages());
+                out.writeString(shop.getArea());
+                out.writeString(shop.getAddress());
+                out.writeDouble(shop.getX());
+                out.writeDouble(shop.getY());
+                out.writeLong(shop.getAvgPrice());
+                out.writeInt(shop.getSold());
+                out.writeInt(shop.getComments());
+                out.writeInt(shop.getScore());
+                out.writeString(shop.getOpenHours());
+                out.writeTime(shop.getCreateTime());
+                out.writeTime(shop.getUpdateTime());
+            }
+
+            @Override
+            public Shop read(Input in) {
+                Shop shop = new Shop();
+                shop.setId(in.readLong());
+                shop.setName(in.readString());
+                shop.setTypeId(in.readLong());
+                shop.setImages(in.readString());
+                shop.setArea(in.readString());
+                shop.setAddress(in.readString());
+                shop.setX(in.readDouble());
+                shop.setY(in.readDouble());
+                shop.setAvgPrice(in.readLong());
+                shop.setSold(in.readInt());
+                shop.setComments(in.readInt());
+                shop.setScore(in.readInt());
+                shop.setOpenHours(in.readString());
+                shop.setCreateTime(in.readTime());
+                shop.setUpdateTime(in.readTime());
+                return shop;
+            }
+        });
+        register(ShopType.class, new Schema<ShopType>() {
+            @Override
+            public void write(Output out, ShopType shopType) {
+                out.writeLong(shopType.getId());
+                out.writeString(shopType.getName());
+                out.writeString(shopType.getIcon());
+                out.writeInt(shopType.getSort());
+            }
+
+            @Override
+            public ShopType read(Input in) {
+                ShopType shopType = new ShopType();
+                shopType.setId(in.readLong());
+                shopType.setName(in.readString());
+                shopType.setIcon(in.readString());
+                shopType.setSort(in.readInt());
+                return shopType;
+            }
+        });
+        register(UserDTO.class, new Schema<UserDTO>() {
+            @Override
+            public void write(Output out, UserDTO user) {
+                out.writeLong(user.getId());
+                out.writeString(user.getNickName());
+                out.writeString(user.getIcon());
+            }
+
+            @Override
+            public UserDTO read(Input in) {
+                UserDTO user = new UserDTO();
+                user.setId(in.readLong());
+                user.setNickName(in.readString());
+                user.setIcon(in.readString());
+                return user;
+            }
+        });
+    }
+
+    public <T> void register(Class<T> type, Schema<T> schema) {
+        schemas.put(type, schema);
+    }
+
+    @Override
+    public byte version() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return schemas.containsKey(type.isArray() ? type.getComponentType() : type);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Object value) {
+        Output out = new Output();
+        Class<?> type = value.getClass();
+        if (type.isArray()) {
+            Schema<Object> schema = (Schema<Object>) schemas.get(type.getComponentType());
+            int length = Array.getLength(value);
+            out.writeVarInt(length);
+            for (int i = 0; i < length; i++) {
+                Object element = Array.get(value, i);
+                out.writeBoolean(element != null);
+                if (element != null) {
+                    schema.write(out, element);
+                }
+            }
+        } else {
+            ((Schema<Object>) schemas.get(type)).write(out, value);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        Input in = new Input(bytes, offset);
+        if (type.isArray()) {
+            Schema<?> schema = schemas.get(type.getComponentType());
+            int size = in.readVarInt();
+            Object array = Array.newInstance(type.getComponentType(), size);
+            for (int i = 0; i < size; i++) {
+                Array.set(array, i, in.readBoolean() ? schema.read(in) : null);
+            }
+            return (T) array;
+        }
+        return (T) schemas.get(type).read(in);
+    }
+
+    /**
+     * 写入缓冲区, 包装类型都先写一个字节表示是否为null
+     */
+    public static class Output {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+
+        public void writeBoolean(boolean value) {
+            ensure(1);
+            buf[pos++] = (byte) (value ? 1 : 0);
+        }
+
+        public void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        public void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        public void writeLong(Long value) {
+            writeBoolean(value != null);
+            if (value != null) {
+                //zigzag, 负数也能变成较短的变长整数
+                writeVarLong((value << 1) ^ (value >> 63));
+            }
+        }
+
+        public void writeInt(Integer value) {
+            writeLong(value == null ? null : value.longValue());
+        }
+
+        public void writeDouble(Double value) {
+            writeBoolean(value != null);
+            if (value != null) {
+                long bits = Double.doubleToRawLongBits(value);
+                ensure(8);
+                for (int i = 56; i >= 0; i -= 8) {
+                    buf[pos++] = (byte) (bits >>> i);
+                }
+            }
+        }
+
+        public void writeString(String value) {
+            writeBoolean(value != null);
+            if (value != null) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, pos, bytes.length);
+                pos += bytes.length;
+            }
+        }
+
+        public void writeTime(LocalDateTime value) {
+            writeBoolean(value != null);
+            if (value != null) {
+                writeVarLong(value.toEpochSecond(ZoneOffset.UTC));
+                writeVarInt(value.getNano());
+            }
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    /**
+     * 读取缓冲区, 和Output的写入顺序一一对应
+     */
+    public static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        public Input(byte[] buf, int offset) {
+            this.buf = buf;
+            this.pos = offset;
+        }
+
+        public boolean readBoolean() {
+            return buf[pos++] != 0;
+        }
+
+        public int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        public long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        public Long readLong() {
+            if (!readBoolean()) {
+                return null;
+            }
+            long raw = readVarLong();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        public Integer readInt() {
+            Long value = readLong();
+            return value == null ? null : value.intValue();
+        }
+
+        public Double readDouble() {
+            if (!readBoolean()) {
+                return null;
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (buf[pos++] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        public String readString() {
+            if (!readBoolean()) {
+                return null;
+            }
+            int length = readVarInt();
+            String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        public LocalDateTime readTime() {
+            if (!readBoolean()) {
+                return null;
+            }
+            long seconds = readVarLong();
+            return LocalDateTime.ofEpochSecond(seconds, readVarInt(), ZoneOffset.UTC);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+/**
+ * @Author: lemme
+ * @ClassName: BloomFilter
+ * @PackageName: com.hmdp.utils
+ * @Description: 布隆过滤器, 判断id是否可能存在(解决缓存穿透)
+ * 返回不存在时一定不存在, 返回存在时有一定的误判率
+ */
+public interface BloomFilter {
+
+    /**
+     * 判断id是否可能存在
+     */
+    boolean mightContain(String id);
+
+    /**
+     * 添加id
+     */
+    void put(String id);
+
+    /**
+     * 预计插入的数量
+     */
+    long getExpectedInsertions();
+
+    /**
+     * 设定的误判率
+     */
+    double getFalseProbability();
+
+    /**
+     * 位数组的长度(bit)
+     */
+    long getBitSize();
+
+    /**
+     * hash函数的个数
+     */
+    int getHashIterations();
+
+    /**
+     * 已经插入的数量(估算值)
+     */
+    long count();
+
+    /**
+     * 按当前插入数量估算的实际误判率 (1 - e^(-kn/m))^k
+     */
+    default double estimatedFalseProbability() {
+        double k = getHashIterations();
+        return Math.pow(1 - Math.exp(-k * count() / getBitSize()), k);
+    }
+
+    /**
+     * 根据预计插入数量和误判率计算位数组长度 m = -n*ln(p)/(ln2)^2
+     */
+    static long optimalBitSize(long expectedInsertions, double falseProbability) {
+        return (long) (-expectedInsertions * Math.log(falseProbability) / (Math.log(2) * Math.log(2)));
+    }
+
+    /**
+     * 根据预计插入数量和位数组长度计算hash函数个数 k = m/n*ln2
+     */
+    static int optimalHashIterations(long expectedInsertions, long bitSize) {
+        return Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+    }
+}
@@ -0,0 +1,256 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: CacheBloomFilter
+ * @PackageName: com.hmdp.utils
+ * @Description: 按key前缀管理布隆过滤器, 查询缓存之前先判断id是否存在, 解决缓存穿透
+ * 默认放在本地(判断没有IO), 新增数据时通过redis频道广播给所有节点;
+ * CACHE_BLOOM_SHARED 为true时放在redis的bitmap中, 所有节点共享一份
+ * 过滤器的容量是固定的, 插入数量超过预计数量后误判率会一直上升, 这时按新的数量重建一个(见 CacheBloomFilterLoader):
+ * 重建期间新增的id同时写入新旧两个过滤器, 数据加载完之后替换旧的过滤器.
+ * 共享模式下每次重建是新的一代(新的key), 通过频道通知其他节点切换
+ */
+@Slf4j
+@Component
+public class CacheBloomFilter {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final Map<String, BloomFilter> filters = new ConcurrentHashMap<>();
+
+    /**
+     * 正在重建的过滤器
+     */
+    private final Map<String, BloomFilter> rebuilding = new ConcurrentHashMap<>();
+
+    /**
+     * 数据已经全部加载完成的key前缀, 加载完成之前不能拦截(否则会把存在的数据误判为不存在)
+     */
+    private final Set<String> readyPrefixes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 被拦截的请求数
+     */
+    private final LongAdder rejectCount = new LongAdder();
+
+    /**
+     * 订阅新增id的频道, 消息格式: key前缀 + 空格 + id
+     */
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.lastIndexOf(' ');
+            putAll(body.substring(0, index), body.substring(index + 1));
+        }, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+        if (CACHE_BLOOM_SHARED) {
+            //消息格式: start/finish 空格 key前缀 空格 代数 空格 预计插入的数量
+            redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+                String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(" ");
+                String prefix = parts[1];
+                if (!filters.containsKey(prefix)) {
+                    return;
+                }
+                BloomFilter filter = rebuilding.computeIfAbsent(prefix,
+                        k -> sharedFilter(prefix, Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                if ("finish".equals(parts[0])) {
+                    filters.put(prefix, filter);
+                    rebuilding.remove(prefix, filter);
+                }
+            }, new ChannelTopic(CACHE_BLOOM_REBUILD_CHANNEL));
+        }
+    }
+
+    /**
+     * 给某个key前缀注册布隆过滤器
+     *
+     * @param keyPreFix          存储到redis中的kye前缀
+     * @param expectedInsertions 预计插入的数量
+     */
+    public BloomFilter register(String keyPreFix, long expectedInsertions) {
+        return filters.computeIfAbsent(keyPreFix, prefix -> CACHE_BLOOM_SHARED
+                ? sharedFilter(prefix, currentGen(prefix), expectedInsertions)
+                : new LocalBloomFilter(expectedInsertions, CACHE_BLOOM_FPP));
+    }
+
+    public BloomFilter get(String keyPreFix) {
+        return filters.get(keyPreFix);
+    }
+
+    /**
+     * 开始重建: 创建一个新的过滤器, 之后新增的id同时写入新旧两个过滤器
+     *
+     * @param keyPreFix          存储到redis中的kye前缀
+     * @param expectedInsertions 新的预计插入数量
+     * @return 新的过滤器, 由调用方加载数据库中的id
+     */
+    public BloomFilter startRebuild(String keyPreFix, long expectedInsertions) {
+        if (!CACHE_BLOOM_SHARED) {
+            BloomFilter filter = new LocalBloomFilter(expectedInsertions, CACHE_BLOOM_FPP);
+            rebuilding.put(keyPreFix, filter);
+            return filter;
+        }
+        long gen = currentGen(keyPreFix) + 1;
+        //上次重建失败留下的同一代key, 删除之后重新创建
+        redissonClient.getBloomFilter(sharedKey(keyPreFix, gen), StringCodec.INSTANCE).delete();
+        BloomFilter filter = sharedFilter(keyPreFix, gen, expectedInsertions);
+        rebuilding.put(keyPreFix, filter);
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_REBUILD_CHANNEL,
+                "start " + keyPreFix + " " + gen + " " + expectedInsertions);
+        return filter;
+    }
+
+    /**
+     * 重建完成, 用新的过滤器替换旧的
+     */
+    public void finishRebuild(String keyPreFix) {
+        BloomFilter filter = rebuilding.remove(keyPreFix);
+        if (filter == null) {
+            return;
+        }
+        filters.put(keyPreFix, filter);
+        if (!CACHE_BLOOM_SHARED) {
+            return;
+        }
+        long gen = currentGen(keyPreFix);
+        stringRedisTemplate.opsForValue().set(CACHE_BLOOM_GEN_KEY + keyPreFix, String.valueOf(gen + 1));
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_REBUILD_CHANNEL,
+                "finish " + keyPreFix + " " + (gen + 1) + " " + filter.getExpectedInsertions());
+        //旧的一代已经没有节点使用
+        redissonClient.getBloomFilter(sharedKey(keyPreFix, gen), StringCodec.INSTANCE).delete();
+    }
+
+    /**
+     * 放弃重建(加载失败), 继续使用旧的过滤器
+     */
+    public void cancelRebuild(String keyPreFix) {
+        rebuilding.remove(keyPreFix);
+    }
+
+    private long currentGen(String keyPreFix) {
+        String gen = stringRedisTemplate.opsForValue().get(CACHE_BLOOM_GEN_KEY + keyPreFix);
+        return gen == null ? 0 : Long.parseLong(gen);
+    }
+
+    /**
+     * 第0代沿用原来的key, 之后每一代加上代数
+     */
+    private static String sharedKey(String keyPreFix, long gen) {
+        return gen == 0 ? CACHE_BLOOM_KEY + keyPreFix : CACHE_BLOOM_KEY + keyPreFix + gen;
+    }
+
+    private BloomFilter sharedFilter(String keyPreFix, long gen, long expectedInsertions) {
+        return new RedisBloomFilter(redissonClient.getBloomFilter(sharedKey(keyPreFix, gen), StringCodec.INSTANCE),
+                expectedInsertions, CACHE_BLOOM_FPP);
+    }
+
+    private void putAll(String keyPreFix, String id) {
+        BloomFilter filter = filters.get(keyPreFix);
+        if (filter != null) {
+            filter.put(id);
+        }
+        BloomFilter next = rebuilding.get(keyPreFix);
+        if (next != null) {
+            next.put(id);
+        }
+    }
+
+    /**
+     * 数据加载完成, 开始拦截
+     */
+    public void ready(String keyPreFix) {
+        readyPrefixes.add(keyPreFix);
+    }
+
+    /**
+     * 判断id是否可能存在, 没有注册过滤器或者还没加载完成的前缀一律放行
+     *
+     * @return false表示一定不存在
+     */
+    public boolean mightContain(String keyPreFix, Object id) {
+        if (!readyPrefixes.contains(keyPreFix)) {
+            return true;
+        }
+        if (filters.get(keyPreFix).mightContain(id.toString())) {
+            return true;
+        }
+        rejectCount.increment();
+        return false;
+    }
+
+    /**
+     * 新增数据时添加id, 在事务中调用时等事务提交之后再添加和广播
+     */
+    public void add(String keyPreFix, Object id) {
+        if (!filters.containsKey(keyPreFix)) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    doAdd(keyPreFix, id);
+                }
+            });
+            return;
+        }
+        doAdd(keyPreFix, id);
+    }
+
+    private void doAdd(String keyPreFix, Object id) {
+        putAll(keyPreFix, id.toString());
+        if (!CACHE_BLOOM_SHARED) {
+            //本地模式, 通知其他节点
+            stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, keyPreFix + " " + id);
+        }
+    }
+
+    /**
+     * 各个过滤器的情况: 容量, 内存, 误判率
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        filters.forEach((prefix, filter) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("shared", CACHE_BLOOM_SHARED);
+            item.put("ready", readyPrefixes.contains(prefix));
+            item.put("rebuilding", rebuilding.containsKey(prefix));
+            item.put("expectedInsertions", filter.getExpectedInsertions());
+            item.put("count", filter.count());
+            item.put("hashIterations", filter.getHashIterations());
+            item.put("memoryBytes", filter.getBitSize() / 8);
+            item.put("falseProbability", filter.getFalseProbability());
+            item.put("estimatedFalseProbability", filter.estimatedFalseProbability());
+            stats.put(prefix, item);
+        });
+        stats.put("rejectCount", rejectCount.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: CacheBloomFilterLoader
+ * @PackageName: com.hmdp.utils
+ * @Description: 项目启动时, 把数据库中已有的id加载到布隆过滤器中
+ * 每个使用 queryWithPassThrough 的key前缀对应一张表(商铺, 用户)
+ * 定时检查插入数量, 超过预计数量时按当前数量的两倍重建过滤器
+ * 定时补漏: 从已加载的最大id(往回重叠一段)开始扫描新增的id, 广播丢失的id也能补上
+ */
+@Slf4j
+@Component
+public class CacheBloomFilterLoader implements ApplicationRunner {
+
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IUserService userService;
+
+    /**
+     * key前缀 -> 对应表的service
+     */
+    private final Map<String, IService<?>> sources = new LinkedHashMap<>();
+    /**
+     * key前缀 -> 已经加载到的最大id
+     */
+    private final Map<String, Long> loadedIds = new ConcurrentHashMap<>();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        sources.put(CACHE_SHOP_KEY, shopService);
+        sources.put(CACHE_USER_KEY, userService);
+        sources.forEach(this::load);
+    }
+
+    /**
+     * 启动时加载
+     *
+     * @param keyPreFix 存储到redis中的kye前缀
+     * @param service   对应表的service
+     */
+    private <T> void load(String keyPreFix, IService<T> service) {
+        long begin = System.currentTimeMillis();
+        int total = service.count();
+        //预留增长空间
+        BloomFilter filter = cacheBloomFilter.register(keyPreFix,
+                Math.max(total * 2L, CACHE_BLOOM_MIN_INSERTIONS));
+        if (CACHE_BLOOM_SHARED && filter.count() >= total) {
+            //其他节点已经加载过了, 补漏从头扫描一次
+            cacheBloomFilter.ready(keyPreFix);
+            loadedIds.put(keyPreFix, 0L);
+            return;
+        }
+        loadedIds.put(keyPreFix, scan(service, filter, 0));
+        cacheBloomFilter.ready(keyPreFix);
+        log.info("布隆过滤器加载完成, key前缀:{}, 数量:{}, 内存:{}字节, 耗时:{}ms", keyPreFix, filter.count(),
+                filter.getBitSize() / 8, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 补漏: 扫描已加载的最大id之后新增的id
+     * 往回重叠 CACHE_BLOOM_CATCHUP_OVERLAP 个id, 分配在前但提交在后的id也能扫到, 重复添加没有影响
+     */
+    @Scheduled(fixedDelay = CACHE_BLOOM_CATCHUP_INTERVAL, initialDelay = CACHE_BLOOM_CATCHUP_INTERVAL)
+    public void catchUp() {
+        sources.forEach((keyPreFix, service) -> {
+            Long lastId = loadedIds.get(keyPreFix);
+            BloomFilter filter = cacheBloomFilter.get(keyPreFix);
+            if (lastId == null || filter == null) {
+                //还没有加载完成
+                return;
+            }
+            try {
+                long before = filter.count();
+                long maxId = scan(service, filter, Math.max(lastId - CACHE_BLOOM_CATCHUP_OVERLAP, 0));
+                loadedIds.merge(keyPreFix, maxId, Math::max);
+                if (filter.count() > before) {
+                    log.info("布隆过滤器补漏, key前缀:{}, 补上的id数量:{}", keyPreFix, filter.count() - before);
+                }
+            } catch (RuntimeException e) {
+                log.error("布隆过滤器补漏失败, key前缀:{}", keyPreFix, e);
+            }
+        });
+    }
+
+    /**
+     * 插入数量超过预计数量的过滤器重建. 共享模式下只由拿到锁的节点重建
+     */
+    @Scheduled(fixedDelay = CACHE_BLOOM_CHECK_INTERVAL)
+    public void checkCapacity() {
+        sources.forEach((keyPreFix, service) -> {
+            BloomFilter filter = cacheBloomFilter.get(keyPreFix);
+            if (filter == null || filter.count() <= filter.getExpectedInsertions()) {
+                return;
+            }
+            if (!CACHE_BLOOM_SHARED) {
+                rebuild(keyPreFix, service);
+                return;
+            }
+            RLock lock = redissonClient.getLock(CACHE_BLOOM_REBUILD_LOCK_KEY + keyPreFix);
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                //拿到锁之后再检查一次, 可能其他节点刚重建完
+                filter = cacheBloomFilter.get(keyPreFix);
+                if (filter.count() > filter.getExpectedInsertions()) {
+                    rebuild(keyPreFix, service);
+                }
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * 按当前数量的两倍新建过滤器并加载所有id, 替换之后再补一次加载期间新增的id
+     */
+    private <T> void rebuild(String keyPreFix, IService<T> service) {
+        long begin = System.currentTimeMillis();
+        BloomFilter old = cacheBloomFilter.get(keyPreFix);
+        long expected = Math.max(Math.max(service.count(), old.count()) * 2L, CACHE_BLOOM_MIN_INSERTIONS);
+        BloomFilter filter = cacheBloomFilter.startRebuild(keyPreFix, expected);
+        long lastId;
+        try {
+            lastId = scan(service, filter, 0);
+        } catch (RuntimeException e) {
+            cacheBloomFilter.cancelRebuild(keyPreFix);
+            throw e;
+        }
+        cacheBloomFilter.finishRebuild(keyPreFix);
+        loadedIds.merge(keyPreFix, scan(service, filter, lastId), Math::max);
+        log.info("布隆过滤器已重建, key前缀:{}, 预计数量:{} -> {}, 数量:{}, 内存:{}字节, 耗时:{}ms", keyPreFix,
+                old.getExpectedInsertions(), expected, filter.count(), filter.getBitSize() / 8,
+                System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 按id分批查询(游标分页), 只查id列
+     *
+     * @param lastId 从这个id之后开始
+     * @return 最后一个id
+     */
+    private <T> long scan(IService<T> service, BloomFilter filter, long lastId) {
+        while (true) {
+            QueryWrapper<T> wrapper = new QueryWrapper<T>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + CACHE_BLOOM_LOAD_BATCH);
+            List<Long> ids = service.listObjs(wrapper, id -> ((Number) id).longValue());
+            for (Long id : ids) {
+                filter.put(id.toString());
+            }
+            if (!ids.isEmpty()) {
+                lastId = ids.get(ids.size() - 1);
+            }
+            if (ids.size() < CACHE_BLOOM_LOAD_BATCH) {
+                return lastId;
+            }
+        }
+    }
+}
@@ -1,18 +1,34 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -22,6 +38,9 @@ import static com.hmdp.utils.RedisConstants.*;
  * @PackageName: com.hmdp.utils
  * @Description: 基于StringRedisTemplate封装的一个缓存工具类
  * 解决 缓存击穿,缓存穿透
+ * value的编码交给CacheSerializer(json或者二进制), 所以读写redis都直接用byte[]
+ * 可以按key前缀开启本地缓存(L1), 数据更新时通过redis频道广播失效, 所有节点一起删除本地副本
+ * 访问redis的key会交给HotKeyDetector统计, 热点key在每个节点上保留一份短时间的本地副本, 不再每次都访问redis
  */
 @Slf4j
 @Component
@@ -29,9 +48,103 @@ public class CacheClient {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+    @Resource
+    private CacheSerializer cacheSerializer;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    /**
+     * 本地缓存(L1)
+     */
+    private final LocalCache localCache = new LocalCache(CACHE_LOCAL_MAX_SIZE);
+
+    /**
+     * 热点key的本地副本, 保存redis中的原始value(byte[])
+     */
+    private final LocalCache hotReplica = new LocalCache(CACHE_HOT_MAX_SIZE);
+
+    /**
+     * 开启了本地缓存的key前缀
+     */
+    private final Set<String> localCachePrefixes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 订阅缓存失效频道, 收到消息就删除本地缓存
+     */
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> {
+                    String key = new String(message.getBody(), StandardCharsets.UTF_8);
+                    localCache.invalidate(key);
+                    hotReplica.invalidate(key);
+                },
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 给某个key前缀开启本地缓存
+     *
+     * @param keyPreFix 存储到redis中的kye前缀
+     */
+    public void enableLocalCache(String keyPreFix) {
+        localCachePrefixes.add(keyPreFix);
+    }
+
+    /**
+     * 删除缓存, 并通知所有节点删除本地缓存
+     * 如果当前在事务中, 等事务提交之后再删除, 避免其他线程在提交前把旧数据重新加载进缓存
+     *
+     * @param key 传入redis key
+     */
+    public void delete(String key) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    doDelete(key);
+                }
+            });
+            return;
+        }
+        doDelete(key);
+    }
+
+    private void doDelete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        hotReplica.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
 
     /**
-     * 将任意Java对象序列化为json并存储在string类型的key中，并且可以设置TTL过期时间
+     * 缓存的运行情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localSize", localCache.size());
+        stats.put("localHitCount", localCache.getHitCount());
+        stats.put("localMissCount", localCache.getMissCount());
+        stats.put("singleFlightSharedCount", singleFlightSharedCount.sum());
+        stats.put("earlyRefreshCount", earlyRefreshCount.sum());
+        stats.put("hotReplicaSize", hotReplica.size());
+        stats.put("hotReplicaHitCount", hotReplica.getHitCount());
+        stats.put("hotKey", hotKeyDetector.stats());
+        stats.put("bloom", cacheBloomFilter.stats());
+        stats.put("rebuild", cacheRebuildScheduler.stats());
+        return stats;
+    }
+
+    /**
+     * 将任意Java对象序列化并存储在string类型的key中，并且可以设置TTL过期时间
      *
      * @param key   传入redis key
      * @param value 传入redis value
@@ -40,7 +153,29 @@ public class CacheClient {
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, cacheSerializer.serialize(value), jitter(time, unit));
+    }
+
+    /**
+     * 将任意Java对象序列化并存储在string类型的key中, 不设置过期时间
+     *
+     * @param key   传入redis key
+     * @param value 传入redis value
+     */
+    public void set(String key, Object value) {
+        setRaw(key, cacheSerializer.serialize(value), Expiration.persistent());
+    }
+
+    /**
+     * 根据key查询缓存, 并反序列化为指定类型
+     *
+     * @param key  传入redis key
+     * @param type 返回值的类型
+     * @return 不存在或者是空值时返回null
+     */
+    public <R> R get(String key, Class<R> type) {
+        byte[] bytes = getRaw(key);
+        return bytes == null || bytes.length == 0 ? null : cacheSerializer.deserialize(bytes, type);
     }
 
     /**
@@ -53,15 +188,196 @@ public class CacheClient {
      * @param unit  设置key的过期时间单位
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 逻辑过期写入, 同时记录这次重建的耗时(给提前刷新模式用)
+     *
+     * @param rebuildCost 重建耗时(毫秒)
+     */
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long rebuildCost) {
+        if (value == null) {
+            //数据库中没有的数据也要缓存(防止缓存穿透), 逻辑上按空值的时间过期, 同时设置真实的过期时间,
+            //不存在的id不会一直占着redis内存
+            LocalDateTime expireTime = LocalDateTime.now().plusMinutes(CACHE_NULL_TTL);
+            setRaw(key, cacheSerializer.serializeWithExpire(null, expireTime, rebuildCost),
+                    jitter(CACHE_NULL_TTL * 2, TimeUnit.MINUTES));
+            return;
+        }
         //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        //设置过期时间:当前时间基础上,加传入的time
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        //设置过期时间:当前时间基础上,加传入的time(带随机抖动)
+        LocalDateTime expireTime = LocalDateTime.now().plus(ttlJitter.apply(unit.toMillis(time)), ChronoUnit.MILLIS);
 
         //写入redis
         //逻辑过期就不传时间了
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setRaw(key, cacheSerializer.serializeWithExpire(value, expireTime, rebuildCost), Expiration.persistent());
+    }
+
+    /**
+     * 过期时间抖动
+     */
+    private volatile TtlJitter ttlJitter = new TtlJitter(CACHE_TTL_JITTER_DISTRIBUTION, CACHE_TTL_JITTER_RATIO);
+
+    public void setTtlJitter(TtlJitter ttlJitter) {
+        this.ttlJitter = ttlJitter;
+    }
+
+    private Expiration jitter(Long time, TimeUnit unit) {
+        return Expiration.milliseconds(ttlJitter.apply(unit.toMillis(time)));
+    }
+
+    /**
+     * 批量预热缓存, 一次pipeline写入
+     * 过期时间均匀分散到 [time, time + window) 中, 同一批写入的key不会在同一时刻过期
+     *
+     * @param keyPreFix  存储到redis中的kye前缀
+     * @param values     要写入的数据
+     * @param idGetter   从数据中取出id
+     * @param time       基础过期时间
+     * @param window     分散的时间窗口
+     * @param unit       时间单位
+     */
+    public <ID, R> void preload(String keyPreFix, List<R> values, Function<R, ID> idGetter,
+                                Long time, Long window, TimeUnit unit) {
+        preload(keyPreFix, values, idGetter, time, window, unit, false);
+    }
+
+    /**
+     * 批量预热缓存(逻辑过期), 一次pipeline写入, 逻辑过期时间均匀分散到 [time, time + window) 中
+     */
+    public <ID, R> void preloadWithLogicalExpire(String keyPreFix, List<R> values, Function<R, ID> idGetter,
+                                                 Long time, Long window, TimeUnit unit) {
+        preload(keyPreFix, values, idGetter, time, window, unit, true);
+    }
+
+    private <ID, R> void preload(String keyPreFix, List<R> values, Function<R, ID> idGetter,
+                                 Long time, Long window, TimeUnit unit, boolean logicalExpire) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long ttl = unit.toMillis(time);
+        long windowMillis = unit.toMillis(window);
+        LocalDateTime now = LocalDateTime.now();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < values.size(); i++) {
+                R value = values.get(i);
+                byte[] rawKey = (keyPreFix + idGetter.apply(value)).getBytes(StandardCharsets.UTF_8);
+                long expire = TtlJitter.spread(ttl, windowMillis, i, values.size());
+                if (logicalExpire) {
+                    connection.stringCommands().set(rawKey,
+                            cacheSerializer.serializeWithExpire(value, now.plus(expire, ChronoUnit.MILLIS), null),
+                            Expiration.persistent(), RedisStringCommands.SetOption.upsert());
+                } else {
+                    connection.stringCommands().set(rawKey, cacheSerializer.serialize(value),
+                            Expiration.milliseconds(expire), RedisStringCommands.SetOption.upsert());
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 统计某个前缀下key的剩余过期时间分布, 用来观察过期时间是否足够分散
+     * 有TTL的key按PTTL统计, 没有TTL的key读取value中的逻辑过期时间
+     *
+     * @param keyPreFix     存储到redis中的kye前缀
+     * @param bucketSeconds 每个区间的秒数
+     * @param maxKeys       最多扫描的key数量
+     * @return buckets: 区间起点(秒) -> key数量
+     */
+    public Map<String, Object> expiryHistogram(String keyPreFix, long bucketSeconds, int maxKeys) {
+        //SCAN扫描key, 不会阻塞redis
+        List<byte[]> keys = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> {
+            List<byte[]> list = new ArrayList<>();
+            ScanOptions options = ScanOptions.scanOptions().match(keyPreFix + "*").count(1000).build();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext() && list.size() < maxKeys) {
+                    list.add(cursor.next());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return list;
+        });
+        Map<Long, Integer> buckets = new TreeMap<>();
+        int persistent = 0;
+        int expired = 0;
+        long nowMillis = System.currentTimeMillis();
+        for (int from = 0; from < keys.size(); from += CACHE_SCAN_BATCH) {
+            List<byte[]> batch = keys.subList(from, Math.min(from + CACHE_SCAN_BATCH, keys.size()));
+            List<Object> ttls = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (byte[] key : batch) {
+                    connection.keyCommands().pTtl(key);
+                }
+                return null;
+            });
+            List<byte[]> noTtlKeys = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                long pttl = ((Number) ttls.get(i)).longValue();
+                if (pttl == -1) {
+                    noTtlKeys.add(batch.get(i));
+                } else if (pttl >= 0) {
+                    buckets.merge(pttl / 1000 / bucketSeconds * bucketSeconds, 1, Integer::sum);
+                }
+            }
+            if (noTtlKeys.isEmpty()) {
+                continue;
+            }
+            //没有TTL, 看是否是逻辑过期的数据
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                    connection.stringCommands().mGet(noTtlKeys.toArray(new byte[0][])));
+            for (byte[] value : values) {
+                LocalDateTime expireTime = value == null || value.length == 0 ? null : cacheSerializer.readExpireTime(value);
+                if (expireTime == null) {
+                    persistent++;
+                    continue;
+                }
+                long remaining = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() - nowMillis;
+                if (remaining < 0) {
+                    expired++;
+                } else {
+                    buckets.merge(remaining / 1000 / bucketSeconds * bucketSeconds, 1, Integer::sum);
+                }
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("scanned", keys.size());
+        result.put("bucketSeconds", bucketSeconds);
+        result.put("buckets", buckets);
+        result.put("logicalExpired", expired);
+        result.put("persistent", persistent);
+        return result;
+    }
+
+    /**
+     * 查询redis, 热点key优先读本地副本
+     */
+    private byte[] getRaw(String key) {
+        boolean hot = hotKeyDetector.record(key);
+        long stamp = hotReplica.stamp();
+        if (hot) {
+            Object replica = hotReplica.get(key);
+            if (replica != null) {
+                return (byte[]) replica;
+            }
+        }
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+        if (hot && bytes != null) {
+            hotReplica.put(key, bytes, CACHE_HOT_TTL, stamp);
+        }
+        return bytes;
+    }
+
+    private void setRaw(String key, byte[] value, Expiration expiration) {
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(key.getBytes(StandardCharsets.UTF_8), value,
+                        expiration, RedisStringCommands.SetOption.upsert()));
+        //本节点的热点副本直接换成新值, 其他节点的副本最多旧 CACHE_HOT_TTL
+        if (hotKeyDetector.isHot(key)) {
+            hotReplica.put(key, value, CACHE_HOT_TTL, hotReplica.stamp());
+        }
     }
 
 
@@ -69,6 +385,7 @@ public class CacheClient {
      * 查询信息
      * 解决缓存穿透(缓存未命中,存入redis中)
      * 根据指定的key查询缓存,并反序列化为指定类型,利用缓存空值的方式解决缓存穿透问题
+     * 注册了布隆过滤器的key前缀, 不存在的id直接返回, 不查redis也不查数据库
      *
      * @param keyPreFix  存储到redis中的kye前缀
      * @param id         根据id(类型不确定)
@@ -81,28 +398,150 @@ public class CacheClient {
      */
     public <ID, R> R queryWithPassThrough(String keyPreFix, ID id, Class<R> type,
                                           Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        //布隆过滤器判断id一定不存在,直接返回
+        if (!cacheBloomFilter.mightContain(keyPreFix, id)) {
+            return null;
+        }
         String key = keyPreFix + id;
+        //先查本地缓存
+        boolean useLocal = localCachePrefixes.contains(keyPreFix);
+        long stamp = 0;
+        if (useLocal) {
+            Object local = localCache.get(key);
+            if (local != null) {
+                return readLocal(local, type);
+            }
+            stamp = localCache.stamp();
+        }
         //从redis中查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 
         //判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        if (bytes != null && bytes.length > 0) {
             //存在,直接返回
-            return JSONUtil.toBean(json, type);
+            R r = cacheSerializer.deserialize(bytes, type);
+            if (useLocal) {
+                putLocal(key, bytes, stamp);
+            }
+            return r;
         }
 
         //判断命中的是否是空值
         //如果redis中的值为空了,那就不要查询数据库了.直接返回
-        if ("".equals(json)) {
+        if (bytes != null) {
+            if (useLocal) {
+                putLocal(key, null, stamp);
+            }
             return null;
         }
-        //不存在,根据id查询数据库
-        R r = dbFallback.apply(id);
+        //不存在,查询数据库. 同一个节点上并发未命中的请求共用一次加载
+        R r = singleFlight
+                ? loadSingleFlight(key, () -> loadWithMutex(key, id, type, dbFallback, time, unit))
+                : loadWithMutex(key, id, type, dbFallback, time, unit);
+        if (useLocal) {
+            putLocal(key, r == null ? null : cacheSerializer.serialize(r), stamp);
+        }
+        return r;
+    }
+
+    /**
+     * 同一个key正在进行中的加载
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 是否合并本节点的并发加载, 默认开启
+     */
+    private volatile boolean singleFlight = true;
+
+    /**
+     * 搭上别人的加载, 没有自己查数据库的次数
+     */
+    private final LongAdder singleFlightSharedCount = new LongAdder();
+
+    public void setSingleFlight(boolean singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * 合并并发加载(single flight)
+     * 第一个线程负责加载, 其他线程等待它的结果, N个线程只查一次数据库, 只写一次redis
+     *
+     * @param key    缓存key
+     * @param loader 加载逻辑
+     * @return 加载结果
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R loadSingleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlightLoads.putIfAbsent(key, future);
+        if (running != null) {
+            //已经有线程在加载,等待结果
+            singleFlightSharedCount.increment();
+            try {
+                return (R) running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
 
+    /**
+     * 互斥锁加载, 解决多个节点同时重建同一个key
+     * 拿到锁的节点查数据库并写入redis, 没拿到锁的节点等一会再查redis
+     */
+    private <ID, R> R loadWithMutex(String key, ID id, Class<R> type,
+                                    Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = CacheRebuildScheduler.lockKey(key);
+        for (int i = 0; i < CACHE_MUTEX_RETRY; i++) {
+            String token = tryLock(lockKey);
+            if (token != null) {
+                try {
+                    //拿到锁之后再查一次redis,可能别的节点已经重建好了
+                    byte[] bytes = getRaw(key);
+                    if (bytes != null) {
+                        return bytes.length == 0 ? null : cacheSerializer.deserialize(bytes, type);
+                    }
+                    return loadFromDb(key, id, dbFallback, time, unit);
+                } finally {
+                    unLock(lockKey, token);
+                }
+            }
+            //没拿到锁,休眠一会再查redis
+            try {
+                Thread.sleep(CACHE_MUTEX_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            byte[] bytes = getRaw(key);
+            if (bytes != null) {
+                return bytes.length == 0 ? null : cacheSerializer.deserialize(bytes, type);
+            }
+        }
+        //等不到别的节点重建完成,自己查数据库
+        return loadFromDb(key, id, dbFallback, time, unit);
+    }
+
+    /**
+     * 查询数据库并写入redis
+     */
+    private <ID, R> R loadFromDb(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        R r = dbFallback.apply(id);
         //数据库中不存在,返回错误,没有此数据
         if (r == null) {
             //将空值写入redis(防止缓存穿透)
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setRaw(key, new byte[0], jitter(CACHE_NULL_TTL, TimeUnit.MINUTES));
             return null;
         }
         //存在,写入redis.(缓存:方便下次直接用,不用查数据库)
@@ -111,9 +550,146 @@ public class CacheClient {
     }
 
     /**
-     * 线程池
+     * 批量查询信息
+     * 解决缓存穿透(缓存未命中,存入redis中), 和 queryWithPassThrough 一样按id缓存, 但是整批只访问3次:
+     * 一次MGET查redis, 一次批量查数据库(未命中的id), 一次pipeline写回redis(包括空值)
+     *
+     * @param keyPreFix  存储到redis中的kye前缀
+     * @param ids        id集合
+     * @param type       返回值的类型(泛型推断)
+     * @param dbFallback 根据id集合批量查询数据库, 例如 listByIds
+     * @param idGetter   从查询结果中取出id, 用来和未命中的id对应
+     * @param time       设置key的过期时间
+     * @param unit       设置key的过期时间单位
+     * @return 按ids的顺序返回, 不存在的数据不返回
      */
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    public <ID, R> List<R> queryManyWithPassThrough(String keyPreFix, Collection<ID> ids, Class<R> type,
+                                                    Function<Collection<ID>, List<R>> dbFallback,
+                                                    Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        boolean useLocal = localCachePrefixes.contains(keyPreFix);
+        long stamp = localCache.stamp();
+        long hotStamp = hotReplica.stamp();
+        //key -> 结果, 按ids的顺序
+        Map<String, R> result = new LinkedHashMap<>(ids.size() * 2);
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            String key = keyPreFix + id;
+            if (result.containsKey(key)) {
+                continue;
+            }
+            result.put(key, null);
+            //布隆过滤器判断一定不存在
+            if (!cacheBloomFilter.mightContain(keyPreFix, id)) {
+                continue;
+            }
+            //本地缓存
+            if (useLocal) {
+                Object local = localCache.get(key);
+                if (local != null) {
+                    result.put(key, readLocal(local, type));
+                    continue;
+                }
+            }
+            //热点key的本地副本
+            if (hotKeyDetector.record(key)) {
+                Object replica = hotReplica.get(key);
+                if (replica != null) {
+                    byte[] bytes = (byte[]) replica;
+                    result.put(key, bytes.length == 0 ? null : cacheSerializer.deserialize(bytes, type));
+                    continue;
+                }
+            }
+            redisIds.add(id);
+        }
+        if (redisIds.isEmpty()) {
+            return collectNonNull(result);
+        }
+
+        //一次MGET查询redis
+        List<String> keys = new ArrayList<>(redisIds.size());
+        byte[][] rawKeys = new byte[redisIds.size()][];
+        for (ID id : redisIds) {
+            String key = keyPreFix + id;
+            rawKeys[keys.size()] = key.getBytes(StandardCharsets.UTF_8);
+            keys.add(key);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                connection.stringCommands().mGet(rawKeys));
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes == null) {
+                missIds.add(redisIds.get(i));
+                continue;
+            }
+            if (hotKeyDetector.isHot(keys.get(i))) {
+                hotReplica.put(keys.get(i), bytes, CACHE_HOT_TTL, hotStamp);
+            }
+            //空值说明数据库中也没有
+            R r = bytes.length == 0 ? null : cacheSerializer.deserialize(bytes, type);
+            result.put(keys.get(i), r);
+            if (useLocal) {
+                putLocal(keys.get(i), bytes, stamp);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return collectNonNull(result);
+        }
+
+        //未命中的id一次查询数据库
+        Map<String, R> loaded = new HashMap<>(missIds.size() * 2);
+        for (R r : dbFallback.apply(missIds)) {
+            loaded.put(keyPreFix + idGetter.apply(r), r);
+        }
+        //一次pipeline写回redis, 数据库中不存在的写入空值
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIds) {
+                String key = keyPreFix + id;
+                R r = loaded.get(key);
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                if (r == null) {
+                    connection.stringCommands().set(rawKey, new byte[0],
+                            jitter(CACHE_NULL_TTL, TimeUnit.MINUTES), RedisStringCommands.SetOption.upsert());
+                } else {
+                    connection.stringCommands().set(rawKey, cacheSerializer.serialize(r),
+                            jitter(time, unit), RedisStringCommands.SetOption.upsert());
+                }
+            }
+            return null;
+        });
+        for (ID id : missIds) {
+            String key = keyPreFix + id;
+            R r = loaded.get(key);
+            result.put(key, r);
+            if (useLocal) {
+                putLocal(key, r == null ? null : cacheSerializer.serialize(r), stamp);
+            }
+        }
+        return collectNonNull(result);
+    }
+
+    /**
+     * 本地缓存保存序列化之后的byte[], 空值保存为空值占位
+     * 每次命中都反序列化出一个新对象, 调用方修改返回值(例如给Shop设置distance)不会影响其他请求
+     */
+    private void putLocal(String key, byte[] bytes, long stamp) {
+        localCache.put(key, bytes == null || bytes.length == 0 ? null : bytes,
+                TimeUnit.SECONDS.toMillis(CACHE_LOCAL_TTL), stamp);
+    }
+
+    private <R> R readLocal(Object local, Class<R> type) {
+        return local == LocalCache.NULL_VALUE ? null : cacheSerializer.deserialize((byte[]) local, type);
+    }
+
+    private static <R> List<R> collectNonNull(Map<String, R> result) {
+        List<R> list = new ArrayList<>(result.size());
+        for (R r : result.values()) {
+            if (r != null) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
 
     /**
      * 查询信息
@@ -133,17 +709,18 @@ public class CacheClient {
                                             Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPreFix + id;
         //从redis中查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 
         //判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             //缓存未命中,不存在,直接返回null
             return null;
         }
 
-        //缓存命中, 需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        //缓存命中, 需要先反序列化为对象
+        RedisData redisData = cacheSerializer.deserializeWithExpire(bytes, type);
+        @SuppressWarnings("unchecked")
+        R r = (R) redisData.getData();
         LocalDateTime expireTime = redisData.getExpireTime();
 
         //判断是否过期
@@ -153,49 +730,101 @@ public class CacheClient {
         }
         //已过期,需要缓重建
 
-        //缓存重建,获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //判断锁是否获取成功
-        if (isLock) {
-            //成功开启独立线程
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    //查询数据库
-                    R rDb = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key, rDb, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unLock(lockKey);
-                }
+        //缓存重建
+        rebuildAsync(key, id, dbFallback, time, unit);
+        //返回过期的信息
+        return r;
+    }
+
+    /**
+     * 提前刷新的次数(还没到逻辑过期时间就重建了)
+     */
+    private final LongAdder earlyRefreshCount = new LongAdder();
+
+    /**
+     * 查询信息
+     * 概率提前刷新(XFetch), 逻辑过期的基础上, 越接近过期时间, 越有可能提前重建缓存,
+     * 上一次重建耗时越长, 提前得越多. 热点key几乎不会真正过期
+     * 刷新条件: 剩余时间 <= -重建耗时 * beta * ln(random)
+     *
+     * @param keyPreFix  存储到redis中的kye前缀
+     * @param id         根据id(类型不确定)
+     * @param type       返回值的类型(泛型推断)
+     * @param dbFallback 谁调用谁传递逻辑
+     * @param time       设置key的逻辑过期时间
+     * @param unit       设置key的逻辑过期时间单位
+     * @return R 返回值
+     */
+    public <R, ID> R queryWithEarlyRefresh(String keyPreFix, ID id, Class<R> type,
+                                           Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPreFix + id;
+        //从redis中查询缓存
+        byte[] bytes = getRaw(key);
+
+        if (bytes == null || bytes.length == 0) {
+            //缓存未命中(还没预热),同步重建一次. 数据库中没有的数据写入空值, 不存在的id不会每次都查数据库
+            return loadSingleFlight(key, () -> {
+                long begin = System.currentTimeMillis();
+                R rDb = dbFallback.apply(id);
+                this.setWithLogicalExpire(key, rDb, time, unit, System.currentTimeMillis() - begin);
+                return rDb;
             });
         }
-        //返回过期的信息
+
+        RedisData redisData = cacheSerializer.deserializeWithExpire(bytes, type);
+        @SuppressWarnings("unchecked")
+        R r = (R) redisData.getData();
+        //剩余时间
+        long remaining = Duration.between(LocalDateTime.now(), redisData.getExpireTime()).toMillis();
+        long rebuildCost = redisData.getRebuildCost() == null ? 0 : redisData.getRebuildCost();
+        double gap = -rebuildCost * CACHE_XFETCH_BETA * Math.log(ThreadLocalRandom.current().nextDouble());
+        if (remaining > gap) {
+            //不需要刷新
+            return r;
+        }
+        if (remaining > 0) {
+            earlyRefreshCount.increment();
+        }
+        rebuildAsync(key, id, dbFallback, time, unit);
         return r;
     }
 
+    /**
+     * 交给重建线程池重建缓存, 并记录重建耗时
+     * 同一个key重复提交, 或者队列满了, 都不会重建, 继续返回旧数据
+     */
+    private <R, ID> void rebuildAsync(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        cacheRebuildScheduler.submit(key, () -> {
+            long begin = System.currentTimeMillis();
+            //查询数据库
+            R rDb = dbFallback.apply(id);
+            //写入redis
+            this.setWithLogicalExpire(key, rDb, time, unit, System.currentTimeMillis() - begin);
+        });
+    }
+
     /**
      * 获取互斥锁 (解决缓存击穿)
      *
      * @param key 锁key
-     * @return 锁是否获取成功
+     * @return 锁的标识, 获取失败返回null
      */
-    private boolean tryLock(String key) {
-        //利用redis的setnx方法来表示获取锁
+    private String tryLock(String key) {
+        //利用redis的setnx方法来表示获取锁, 值是本次加锁的标识
+        String token = UUID.fastUUID().toString(true);
         Boolean isHas = stringRedisTemplate.opsForValue()
-                .setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.MINUTES);
+                .setIfAbsent(key, token, LOCK_SHOP_TTL, TimeUnit.MINUTES);
         //因为isHas是Boolean包装类, 做拆箱时,有空指针风险,转换成基本类型
-        return BooleanUtil.isTrue(isHas);
+        return BooleanUtil.isTrue(isHas) ? token : null;
     }
 
     /**
-     * 释放互斥锁
+     * 释放互斥锁, 只释放自己加的锁(锁过期后可能已经被其他线程拿到)
      *
-     * @param key 锁key
+     * @param key   锁key
+     * @param token 加锁时的标识
      */
-    private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+    private void unLock(String key, String token) {
+        redisScriptRegistry.execute(RedisScriptRegistry.UNLOCK, Collections.singletonList(key), token);
     }
 }
@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+/**
+ * @Author: lemme
+ * @ClassName: CacheCodec
+ * @PackageName: com.hmdp.utils
+ * @Description: 缓存value的编解码器
+ * 每种编码有自己的版本号, 写在value的第一个字节, 读取时按版本号找到对应的编码器,
+ * 所以不同节点可以使用不同的编码(灰度发布)
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码版本号, 1~15
+     */
+    byte version();
+
+    /**
+     * 是否支持这个类型
+     */
+    boolean supports(Class<?> type);
+
+    /**
+     * 编码
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码
+     *
+     * @param bytes  数据
+     * @param offset 起始位置
+     * @param length 长度
+     * @param type   返回值的类型
+     */
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type);
+}
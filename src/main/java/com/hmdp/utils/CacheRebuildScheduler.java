@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: CacheRebuildScheduler
+ * @PackageName: com.hmdp.utils
+ * @Description: 缓存重建线程池
+ * 1. 同一个key同时只会有一个重建任务(本节点去重, 多节点之间用redis互斥锁)
+ * 2. 队列有界, 满了直接丢弃任务(继续返回旧数据), 大量key同时过期时内存不会涨, 也不会打满数据库连接池
+ * 3. 锁按key前缀区分命名空间: lock: + key
+ * 4. 记录队列长度, 重建耗时, 失败和丢弃的次数
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            CACHE_REBUILD_THREADS, CACHE_REBUILD_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(CACHE_REBUILD_QUEUE_SIZE),
+            ThreadFactoryBuilder.create().setNamePrefix("cache-rebuild-").setDaemon(true).build(),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    /**
+     * 排队中或者正在执行的key
+     */
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder dedupCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder totalCost = new LongAdder();
+    private final AtomicLong maxCost = new AtomicLong();
+
+    /**
+     * 提交重建任务
+     *
+     * @param key  要重建的缓存key
+     * @param task 重建逻辑
+     * @return 是否提交成功, 重复/拿不到锁/队列已满都返回false
+     */
+    public boolean submit(String key, Runnable task) {
+        //本节点已经有这个key的任务了
+        if (!pendingKeys.add(key)) {
+            dedupCount.increment();
+            return false;
+        }
+        String lockKey = lockKey(key);
+        //其他节点正在重建
+        String token = tryLock(lockKey);
+        if (token == null) {
+            pendingKeys.remove(key);
+            dedupCount.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, lockKey, token, task));
+            submittedCount.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            //队列满了,丢弃任务
+            droppedCount.increment();
+            unLock(lockKey, token);
+            pendingKeys.remove(key);
+            return false;
+        }
+    }
+
+    private void run(String key, String lockKey, String token, Runnable task) {
+        long begin = System.currentTimeMillis();
+        try {
+            task.run();
+            completedCount.increment();
+        } catch (Exception e) {
+            failedCount.increment();
+            log.error("缓存重建失败, key:{}", key, e);
+        } finally {
+            long cost = System.currentTimeMillis() - begin;
+            totalCost.add(cost);
+            maxCost.accumulateAndGet(cost, Math::max);
+            unLock(lockKey, token);
+            pendingKeys.remove(key);
+        }
+    }
+
+    /**
+     * 缓存key对应的互斥锁key, 不同的key前缀落在不同的命名空间
+     */
+    public static String lockKey(String key) {
+        return CACHE_LOCK_KEY + key;
+    }
+
+    /**
+     * @return 锁的标识, 获取失败返回null
+     */
+    private String tryLock(String key) {
+        String token = UUID.fastUUID().toString(true);
+        Boolean isHas = stringRedisTemplate.opsForValue()
+                .setIfAbsent(key, token, LOCK_SHOP_TTL, TimeUnit.MINUTES);
+        return BooleanUtil.isTrue(isHas) ? token : null;
+    }
+
+    /**
+     * 只释放自己加的锁
+     */
+    private void unLock(String key, String token) {
+        redisScriptRegistry.execute(RedisScriptRegistry.UNLOCK, Collections.singletonList(key), token);
+    }
+
+    /**
+     * 重建线程池的运行情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long finished = completedCount.sum() + failedCount.sum();
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("activeCount", executor.getActiveCount());
+        stats.put("pendingKeys", pendingKeys.size());
+        stats.put("submittedCount", submittedCount.sum());
+        stats.put("completedCount", completedCount.sum());
+        stats.put("failedCount", failedCount.sum());
+        stats.put("droppedCount", droppedCount.sum());
+        stats.put("dedupCount", dedupCount.sum());
+        stats.put("avgCostMillis", finished == 0 ? 0 : totalCost.sum() / finished);
+        stats.put("maxCostMillis", maxCost.get());
+        return stats;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,231 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.hmdp.utils.RedisConstants.CACHE_CODEC_VERSION;
+import static com.hmdp.utils.RedisConstants.CACHE_COMPRESS_THRESHOLD;
+
+/**
+ * @Author: lemme
+ * @ClassName: CacheSerializer
+ * @PackageName: com.hmdp.utils
+ * @Description: 缓存value的序列化
+ * 带版本号的格式: [头 1字节][逻辑过期时间 8字节][重建耗时 8字节][压缩前长度 4字节][数据]
+ * 头: 最高位固定为1, 0x40 压缩, 0x20 带逻辑过期, 低4位是编码版本号. 方括号中的字段只有对应的标志位为1时才有
+ * 旧数据(纯json, 第一个字节最高位为0)仍然可以读取; CACHE_CODEC_VERSION为0时按旧格式写入, 方便和老版本节点混跑
+ */
+@Component
+public class CacheSerializer {
+
+    /**
+     * 按旧格式(纯json, 没有版本号)写入
+     */
+    public static final int LEGACY = 0;
+
+    private static final int HEADER = 0x80;
+    private static final int COMPRESSED = 0x40;
+    private static final int LOGICAL_EXPIRE = 0x20;
+    private static final int VERSION_MASK = 0x0F;
+
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+    private final CacheCodec[] codecs = new CacheCodec[VERSION_MASK + 1];
+
+    /**
+     * 写入时使用的编码版本
+     */
+    private volatile int writeVersion = CACHE_CODEC_VERSION;
+
+    public CacheSerializer() {
+        register(jsonCodec);
+        register(new BinaryCacheCodec());
+    }
+
+    public void register(CacheCodec codec) {
+        codecs[codec.version()] = codec;
+    }
+
+    public void setWriteVersion(int writeVersion) {
+        this.writeVersion = writeVersion;
+    }
+
+    /**
+     * 序列化
+     */
+    public byte[] serialize(Object value) {
+        if (writeVersion == LEGACY) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        return write(value, 0, null, null);
+    }
+
+    /**
+     * 序列化, 带逻辑过期时间
+     *
+     * @param rebuildCost 重建耗时(毫秒), 可以为null
+     */
+    public byte[] serializeWithExpire(Object value, LocalDateTime expireTime, Long rebuildCost) {
+        if (writeVersion == LEGACY) {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(expireTime);
+            redisData.setRebuildCost(rebuildCost);
+            return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+        }
+        return write(value, LOGICAL_EXPIRE, expireTime, rebuildCost);
+    }
+
+    /**
+     * 反序列化
+     */
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        if ((bytes[0] & HEADER) == 0) {
+            return jsonCodec.decode(bytes, 0, bytes.length, type);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int header = buffer.get() & 0xFF;
+        if ((header & LOGICAL_EXPIRE) != 0) {
+            buffer.position(buffer.position() + 16);
+        }
+        return read(header, buffer, type);
+    }
+
+    /**
+     * 反序列化带逻辑过期时间的数据, 返回的RedisData中data已经是指定的类型
+     */
+    public <T> RedisData deserializeWithExpire(byte[] bytes, Class<T> type) {
+        if ((bytes[0] & HEADER) == 0) {
+            RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            Object data = redisData.getData();
+            redisData.setData(data == null ? null : JSONUtil.toBean((JSONObject) data, type));
+            return redisData;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int header = buffer.get() & 0xFF;
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(buffer.getLong()), ZoneId.systemDefault()));
+        long rebuildCost = buffer.getLong();
+        redisData.setRebuildCost(rebuildCost < 0 ? null : rebuildCost);
+        redisData.setData(read(header, buffer, type));
+        return redisData;
+    }
+
+    /**
+     * 只读取逻辑过期时间, 不解析数据
+     *
+     * @return 不是逻辑过期的数据时返回null
+     */
+    public LocalDateTime readExpireTime(byte[] bytes) {
+        if ((bytes[0] & HEADER) == 0) {
+            //旧格式只能整个解析
+            if (bytes[0] != '{') {
+                return null;
+            }
+            JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+            return json.containsKey("expireTime") ? json.toBean(RedisData.class).getExpireTime() : null;
+        }
+        if ((bytes[0] & LOGICAL_EXPIRE) == 0) {
+            return null;
+        }
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(ByteBuffer.wrap(bytes, 1, 8).getLong()), ZoneId.systemDefault());
+    }
+
+    private byte[] write(Object value, int flags, LocalDateTime expireTime, Long rebuildCost) {
+        CacheCodec codec = value != null && codecs[writeVersion] != null && codecs[writeVersion].supports(value.getClass())
+                ? codecs[writeVersion] : jsonCodec;
+        //逻辑过期的数据可能为null(数据库中已经删除)
+        byte[] payload = value == null ? new byte[0] : codec.encode(value);
+        int header = HEADER | flags | codec.version();
+        int rawLength = payload.length;
+        if (payload.length >= CACHE_COMPRESS_THRESHOLD) {
+            byte[] compressed = compress(payload);
+            //压缩之后反而变大就不压缩
+            if (compressed.length < payload.length) {
+                payload = compressed;
+                header |= COMPRESSED;
+            }
+        }
+        int size = 1 + ((header & LOGICAL_EXPIRE) != 0 ? 16 : 0) + ((header & COMPRESSED) != 0 ? 4 : 0) + payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) header);
+        if ((header & LOGICAL_EXPIRE) != 0) {
+            buffer.putLong(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            buffer.putLong(rebuildCost == null ? -1 : rebuildCost);
+        }
+        if ((header & COMPRESSED) != 0) {
+            buffer.putInt(rawLength);
+        }
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    private <T> T read(int header, ByteBuffer buffer, Class<T> type) {
+        CacheCodec codec = codecs[header & VERSION_MASK];
+        if (codec == null) {
+            throw new IllegalStateException("未知的缓存编码版本:" + (header & VERSION_MASK));
+        }
+        byte[] bytes = buffer.array();
+        int offset = buffer.position();
+        int length = buffer.remaining();
+        if ((header & COMPRESSED) != 0) {
+            bytes = decompress(bytes, offset + 4, length - 4, buffer.getInt());
+            offset = 0;
+            length = bytes.length;
+        }
+        if (length == 0) {
+            return null;
+        }
+        return codec.decode(bytes, offset, length, type);
+    }
+
+    /**
+     * 压缩, jdk自带的deflate, 用最快的级别
+     */
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] data, int offset, int length, int rawLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            byte[] result = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(result, n, rawLength - n);
+                if (read == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += read;
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("缓存数据解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
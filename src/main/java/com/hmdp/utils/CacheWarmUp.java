@@ -0,0 +1,204 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: CacheWarmUp
+ * @PackageName: com.hmdp.utils
+ * @Description: 项目启动时预热缓存: 店铺, 店铺类型, 秒杀库存和秒杀时间
+ * 按id游标分页读取数据库, 每页用一次pipeline写入redis, 写入线程数有上限
+ * 在ApplicationRunner中同步执行. Tomcat这时已经在接收请求, 所以预热期间把就绪状态(ReadinessState)设置为REFUSING_TRAFFIC,
+ * 完成(或失败)后恢复为ACCEPTING_TRAFFIC, 负载均衡通过 /actuator/health/readiness 判断是否可以转发流量
+ */
+@Slf4j
+@Component
+public class CacheWarmUp implements ApplicationRunner {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    private volatile String status = "WAITING";
+    private final Map<String, AtomicLong> loaded = new ConcurrentHashMap<>();
+    private final AtomicLong keys = new AtomicLong();
+    private volatile long beginTime;
+    private volatile long endTime;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        status = "RUNNING";
+        beginTime = System.currentTimeMillis();
+        AvailabilityChangeEvent.publish(applicationEventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+        ExecutorService writers = new ThreadPoolExecutor(CACHE_WARMUP_THREADS, CACHE_WARMUP_THREADS,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNamePrefix("cache-warm-up-").build());
+        //同时在写的批次不超过 线程数*2, 读数据库不会比写redis快太多
+        Semaphore inFlight = new Semaphore(CACHE_WARMUP_THREADS * 2);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            //店铺, 过期时间分散到一个窗口中, 避免同时过期
+            scan(shopService, "id", Shop::getId, writers, inFlight, futures, CACHE_SHOP_KEY,
+                    shops -> cacheClient.preload(CACHE_SHOP_KEY, shops, Shop::getId,
+                            CACHE_SHOP_TTL, CACHE_WARMUP_SPREAD, TimeUnit.MINUTES));
+            //店铺类型, 只有一个key
+            List<ShopType> shopTypes = shopTypeService.query().orderByAsc("sort").list();
+            if (!shopTypes.isEmpty()) {
+                cacheClient.set(CACHE_SHOP_TYPE_KEY, shopTypes.toArray(new ShopType[0]));
+                count(CACHE_SHOP_TYPE_KEY, 1);
+            }
+            //秒杀库存, 只预热还没结束的
+            scan(seckillVoucherService, "voucher_id", SeckillVoucher::getVoucherId, writers, inFlight, futures,
+                    SECKILL_STOCK_KEY, this::writeStock);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            status = "DONE";
+        } catch (Exception e) {
+            //预热失败不影响启动, 查询时会回源数据库
+            status = "FAILED";
+            log.error("缓存预热失败", e);
+        } finally {
+            writers.shutdownNow();
+            endTime = System.currentTimeMillis();
+            AvailabilityChangeEvent.publish(applicationEventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+        }
+        log.info("缓存预热结束, 状态:{}, 数量:{}, 耗时:{}ms", status, keys.get(), endTime - beginTime);
+    }
+
+    /**
+     * 按id游标分页读取整张表, 每页交给写入线程池
+     *
+     * @param service  对应表的service
+     * @param idColumn 主键列名
+     * @param idGetter 从数据中取出id
+     * @param name     统计用的名称
+     * @param writer   写入一页数据
+     */
+    private <T> void scan(IService<T> service, String idColumn, Function<T, Long> idGetter,
+                          ExecutorService writers, Semaphore inFlight, List<Future<?>> futures,
+                          String name, Consumer<List<T>> writer) throws InterruptedException {
+        long lastId = 0;
+        while (true) {
+            QueryWrapper<T> wrapper = new QueryWrapper<T>()
+                    .gt(idColumn, lastId)
+                    .orderByAsc(idColumn)
+                    .last("limit " + CACHE_WARMUP_BATCH);
+            List<T> page = service.list(wrapper);
+            if (page.isEmpty()) {
+                break;
+            }
+            inFlight.acquire();
+            futures.add(writers.submit(() -> {
+                try {
+                    writer.accept(page);
+                    count(name, page.size());
+                } finally {
+                    inFlight.release();
+                }
+            }));
+            if (page.size() < CACHE_WARMUP_BATCH) {
+                break;
+            }
+            lastId = idGetter.apply(page.get(page.size() - 1));
+        }
+    }
+
+    private void writeStock(List<SeckillVoucher> vouchers) {
+        LocalDateTime now = LocalDateTime.now();
+        //已经分片的秒杀券库存在分片key中, 不能再写不分片的库存key, 否则重启后会多出一份库存
+        List<String> shardKeys = new ArrayList<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            shardKeys.add(SECKILL_SHARDS_KEY + voucher.getVoucherId());
+        }
+        List<String> shardCounts = stringRedisTemplate.opsForValue().multiGet(shardKeys);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < vouchers.size(); i++) {
+                SeckillVoucher voucher = vouchers.get(i);
+                if (voucher.getEndTime() != null && voucher.getEndTime().isBefore(now)) {
+                    continue;
+                }
+                boolean sharded = shardCounts != null && StrUtil.isNotBlank(shardCounts.get(i));
+                //只在不存在时写入, redis中的库存比数据库新(订单是异步落库的), 不能被覆盖
+                if (!sharded) {
+                    connection.stringCommands().set(
+                            (SECKILL_STOCK_KEY + voucher.getVoucherId()).getBytes(StandardCharsets.UTF_8),
+                            voucher.getStock().toString().getBytes(StandardCharsets.UTF_8),
+                            Expiration.persistent(), RedisStringCommands.SetOption.ifAbsent());
+                }
+                //秒杀时间
+                Map<byte[], byte[]> meta = new HashMap<>(4);
+                SeckillStockShards.voucherMeta(voucher.getBeginTime(), voucher.getEndTime())
+                        .forEach((k, v) -> meta.put(k.getBytes(StandardCharsets.UTF_8), v.getBytes(StandardCharsets.UTF_8)));
+                connection.hashCommands().hMSet(
+                        (SECKILL_VOUCHER_KEY + voucher.getVoucherId()).getBytes(StandardCharsets.UTF_8), meta);
+            }
+            return null;
+        });
+    }
+
+    private void count(String name, long n) {
+        loaded.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(n);
+        keys.addAndGet(n);
+    }
+
+    /**
+     * 预热进度
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long elapsed = (endTime > 0 ? endTime : System.currentTimeMillis()) - beginTime;
+        stats.put("status", status);
+        stats.put("keys", keys.get());
+        stats.put("elapsedMillis", beginTime > 0 ? elapsed : 0);
+        stats.put("keysPerSecond", beginTime > 0 && elapsed > 0 ? keys.get() * 1000 / elapsed : 0);
+        Map<String, Long> byPrefix = new LinkedHashMap<>();
+        loaded.forEach((k, v) -> byPrefix.put(k, v.get()));
+        stats.put("loaded", byPrefix);
+        return stats;
+    }
+}
@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Author: lemme
+ * @ClassName: Histogram
+ * @PackageName: com.hmdp.utils
+ * @Description: 按2的幂分桶的直方图, 用来统计批次大小, 耗时等
+ * 第i个桶统计 (2^(i-1), 2^i] 范围内的值, 最后一个桶统计所有更大的值
+ */
+public class Histogram {
+
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param bucketCount 桶的数量, 最大的有界桶上限是 2^(bucketCount-2)
+     */
+    public Histogram(int bucketCount) {
+        buckets = new LongAdder[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        int i = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+        buckets[Math.min(i, buckets.length - 1)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * 桶上限 -> 数量, 只包含数量不为0的桶
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        long n = count.sum();
+        snapshot.put("count", n);
+        snapshot.put("avg", n == 0 ? 0 : sum.sum() / n);
+        snapshot.put("max", max.get());
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < buckets.length; i++) {
+            long c = buckets[i].sum();
+            if (c > 0) {
+                counts.put(i == buckets.length - 1 ? ">" + (1L << (i - 1)) : "<=" + (1L << i), c);
+            }
+        }
+        snapshot.put("buckets", counts);
+        return snapshot;
+    }
+}
@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: HotKeyDetector
+ * @PackageName: com.hmdp.utils
+ * @Description: 热点key探测
+ * 用滑动窗口的count-min sketch统计每个key最近一段时间的访问次数(只会多估, 不会少估), 内存固定, 和key的数量无关
+ * 窗口分成若干格, 每格一个sketch, 过期的格子在下次用到时清零
+ * 超过阈值的key标记为热点并广播给所有节点, 热点状态保持一段时间, 期间仍然超过阈值就续期
+ * 访问按采样率抽样记录, 估算次数按采样率放大, 热点本身访问量大, 抽样后仍然能被发现
+ * 过期的热点key定时清理, 不依赖再次查询
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final int width;
+    private final long slotMillis;
+    /**
+     * 每格一个sketch, CACHE_HOT_DEPTH行 * width列, 按行连续存放
+     */
+    private final AtomicIntegerArray[] slots;
+    /**
+     * 每格对应的时间片编号, 和当前时间片不一致说明是旧数据
+     */
+    private final AtomicLong[] slotEpochs;
+
+    /**
+     * 热点key -> 热点信息
+     */
+    private final ConcurrentHashMap<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    private final LongAdder promotedCount = new LongAdder();
+
+    private volatile int threshold = CACHE_HOT_THRESHOLD;
+
+    public HotKeyDetector() {
+        this.width = Integer.highestOneBit(CACHE_HOT_WIDTH - 1) << 1;
+        this.slotMillis = CACHE_HOT_WINDOW / CACHE_HOT_SLOTS;
+        this.slots = new AtomicIntegerArray[CACHE_HOT_SLOTS];
+        this.slotEpochs = new AtomicLong[CACHE_HOT_SLOTS];
+        for (int i = 0; i < CACHE_HOT_SLOTS; i++) {
+            slots[i] = new AtomicIntegerArray(CACHE_HOT_DEPTH * width);
+            slotEpochs[i] = new AtomicLong(-1);
+        }
+    }
+
+    /**
+     * 订阅热点频道, 其他节点发现的热点本节点也复制一份
+     */
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> promote(new String(message.getBody(), StandardCharsets.UTF_8), 0, false),
+                new ChannelTopic(CACHE_HOT_KEY_CHANNEL));
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @param key 缓存key
+     * @return 是否是热点key
+     */
+    public boolean record(String key) {
+        long now = System.currentTimeMillis();
+        if ((ThreadLocalRandom.current().nextInt() & (CACHE_HOT_SAMPLE_RATE - 1)) != 0) {
+            //没有抽中的访问只查热点状态
+            return isHot(key, now);
+        }
+        long epoch = now / slotMillis;
+        AtomicIntegerArray current = slot(epoch);
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < CACHE_HOT_DEPTH; i++) {
+            int index = i * width + ((h1 + i * h2) & (width - 1));
+            int count = current.incrementAndGet(index);
+            for (int s = 0; s < CACHE_HOT_SLOTS; s++) {
+                //窗口内的其他格子
+                if (slots[s] != current && epoch - slotEpochs[s].get() < CACHE_HOT_SLOTS) {
+                    count += slots[s].get(index);
+                }
+            }
+            min = Math.min(min, count);
+        }
+        //按采样率还原成实际访问次数
+        min *= CACHE_HOT_SAMPLE_RATE;
+        if (min >= threshold) {
+            promote(key, min, true);
+            return true;
+        }
+        return isHot(key, now);
+    }
+
+    /**
+     * 是否是热点key(不记录访问)
+     */
+    public boolean isHot(String key) {
+        return isHot(key, System.currentTimeMillis());
+    }
+
+    private boolean isHot(String key, long now) {
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey == null) {
+            return false;
+        }
+        if (hotKey.hotUntil < now) {
+            hotKeys.remove(key, hotKey);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 清理过期的热点key, 不再被访问的key也能及时移除
+     */
+    @Scheduled(fixedDelay = CACHE_HOT_SWEEP_INTERVAL)
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        hotKeys.entrySet().removeIf(entry -> entry.getValue().hotUntil < now);
+    }
+
+    /**
+     * 标记为热点
+     *
+     * @param broadcast 本节点探测到的热点要广播, 收到广播的不再转发
+     */
+    private void promote(String key, int count, boolean broadcast) {
+        long now = System.currentTimeMillis();
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey != null && hotKey.hotUntil >= now) {
+            //续期, 不重复广播
+            hotKey.hotUntil = now + CACHE_HOT_HOLD;
+            hotKey.count = Math.max(hotKey.count, count);
+            return;
+        }
+        hotKey = new HotKey();
+        hotKey.promotedAt = now;
+        hotKey.hotUntil = now + CACHE_HOT_HOLD;
+        hotKey.count = count;
+        hotKey.local = broadcast;
+        hotKeys.put(key, hotKey);
+        promotedCount.increment();
+        if (broadcast) {
+            log.info("发现热点key:{}, 窗口内访问次数:{}", key, count);
+            stringRedisTemplate.convertAndSend(CACHE_HOT_KEY_CHANNEL, key);
+        }
+    }
+
+    /**
+     * 取出当前时间片对应的格子, 格子里是旧数据时先清零
+     */
+    private AtomicIntegerArray slot(long epoch) {
+        int i = (int) (epoch % CACHE_HOT_SLOTS);
+        AtomicLong slotEpoch = slotEpochs[i];
+        long old = slotEpoch.get();
+        if (old != epoch && slotEpoch.compareAndSet(old, epoch)) {
+            //清零期间的并发计数会丢一部分, 对于估算可以接受
+            AtomicIntegerArray slot = slots[i];
+            for (int j = 0; j < slot.length(); j++) {
+                slot.set(j, 0);
+            }
+        }
+        return slots[i];
+    }
+
+    /**
+     * 当前的热点key, 按访问次数从大到小
+     */
+    public List<Map<String, Object>> hotKeys() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, HotKey>> entries = new ArrayList<>();
+        for (Map.Entry<String, HotKey> entry : hotKeys.entrySet()) {
+            if (entry.getValue().hotUntil >= now) {
+                entries.add(entry);
+            }
+        }
+        entries.sort((a, b) -> Integer.compare(b.getValue().count, a.getValue().count));
+        List<Map<String, Object>> list = new ArrayList<>(entries.size());
+        for (Map.Entry<String, HotKey> entry : entries) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", entry.getKey());
+            item.put("count", entry.getValue().count);
+            item.put("local", entry.getValue().local);
+            item.put("promotedAt", entry.getValue().promotedAt);
+            item.put("hotUntil", entry.getValue().hotUntil);
+            list.add(item);
+        }
+        return list;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("threshold", threshold);
+        stats.put("windowMillis", CACHE_HOT_WINDOW);
+        stats.put("sampleRate", CACHE_HOT_SAMPLE_RATE);
+        stats.put("hotKeyCount", hotKeys.size());
+        stats.put("promotedCount", promotedCount.sum());
+        stats.put("sketchBytes", (long) CACHE_HOT_SLOTS * CACHE_HOT_DEPTH * width * 4);
+        return stats;
+    }
+
+    private static long hash(String key) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        //murmur3的fmix64
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC5L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class HotKey {
+        /**
+         * 窗口内的访问次数(估算), 收到广播的热点为0
+         */
+        volatile int count;
+        volatile long promotedAt;
+        volatile long hotUntil;
+        /**
+         * 是否是本节点探测到的
+         */
+        volatile boolean local;
+    }
+}
@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * @Author: lemme
+ * @ClassName: JsonCacheCodec
+ * @PackageName: com.hmdp.utils
+ * @Description: json编码, 支持任意类型, 也用来读取没有版本号的旧数据
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final byte VERSION = 1;
+
+    @Override
+    public byte version() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        String json = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        if (type.isArray()) {
+            //数组按json数组解析
+            List<?> list = JSONUtil.toList(json, type.getComponentType());
+            return (T) list.toArray((Object[]) Array.newInstance(type.getComponentType(), list.size()));
+        }
+        return JSONUtil.toBean(json, type);
+    }
+}
@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Author: lemme
+ * @ClassName: LocalBloomFilter
+ * @PackageName: com.hmdp.utils
+ * @Description: 进程内的布隆过滤器, 判断时没有任何IO
+ * 位数组用AtomicLongArray保存, 可以并发添加; 用两个hash值组合出k个hash (Kirsch-Mitzenmacher)
+ */
+public class LocalBloomFilter implements BloomFilter {
+
+    private final long expectedInsertions;
+    private final double falseProbability;
+    private final long bitSize;
+    private final int hashIterations;
+    private final AtomicLongArray bits;
+    private final LongAdder count = new LongAdder();
+
+    public LocalBloomFilter(long expectedInsertions, double falseProbability) {
+        this.expectedInsertions = expectedInsertions;
+        this.falseProbability = falseProbability;
+        long m = BloomFilter.optimalBitSize(expectedInsertions, falseProbability);
+        //按long对齐
+        this.bits = new AtomicLongArray((int) ((m + 63) >>> 6));
+        this.bitSize = (long) bits.length() << 6;
+        this.hashIterations = BloomFilter.optimalHashIterations(expectedInsertions, bitSize);
+    }
+
+    @Override
+    public boolean mightContain(String id) {
+        long h1 = hash(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < hashIterations; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void put(String id) {
+        long h1 = hash(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        boolean changed = false;
+        for (int i = 0; i < hashIterations; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long old;
+            while (((old = bits.get(word)) & mask) == 0) {
+                if (bits.compareAndSet(word, old, old | mask)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        //所有位都已经是1, 说明(可能)已经添加过, 不重复计数
+        if (changed) {
+            count.increment();
+        }
+    }
+
+    @Override
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    @Override
+    public double getFalseProbability() {
+        return falseProbability;
+    }
+
+    @Override
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    @Override
+    public int getHashIterations() {
+        return hashIterations;
+    }
+
+    @Override
+    public long count() {
+        return count.sum();
+    }
+
+    private static long hash(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        long h = 0xCBF29CE484222325L;
+        for (byte b : bytes) {
+            h ^= b;
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * murmur3的fmix64, 打散hash值
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC5L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
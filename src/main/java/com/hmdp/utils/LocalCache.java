@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Author: lemme
+ * @ClassName: LocalCache
+ * @PackageName: com.hmdp.utils
+ * @Description: 进程内一级缓存(L1)
+ * 容量有界(LRU淘汰), 每条数据有自己的TTL, 保存的值由调用方决定(CacheClient保存序列化之后的byte[], 命中时不访问redis)
+ */
+public class LocalCache {
+
+    /**
+     * 空值占位, 数据库中不存在的数据也缓存一份, 防止穿透到redis
+     */
+    public static final Object NULL_VALUE = new Object();
+
+    private final LRUCache<String, Object> cache;
+
+    /**
+     * 失效版本号, 每次失效都会加1.
+     * 读redis之前先记下版本号, 写入本地缓存时版本号变了, 说明期间有人更新过数据, 这份数据不能再放进来
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public LocalCache(int capacity) {
+        this.cache = CacheUtil.newLRUCache(capacity);
+    }
+
+    /**
+     * 查询本地缓存
+     *
+     * @param key 缓存key
+     * @return 未命中返回null, 命中空值返回 {@link #NULL_VALUE}
+     */
+    public Object get(String key) {
+        Object value = cache.get(key, false);
+        if (value == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return value;
+    }
+
+    /**
+     * 当前的失效版本号, 配合 {@link #put(String, Object, long, long)} 使用
+     */
+    public long stamp() {
+        return version.get();
+    }
+
+    /**
+     * 写入本地缓存
+     *
+     * @param key     缓存key
+     * @param value   要缓存的值, null会被替换为空值占位
+     * @param ttl     过期时间(毫秒)
+     * @param stamp   读取数据之前拿到的版本号
+     */
+    public void put(String key, Object value, long ttl, long stamp) {
+        if (stamp != version.get()) {
+            //读取期间发生过失效,丢弃
+            return;
+        }
+        cache.put(key, value == null ? NULL_VALUE : value, ttl);
+        //写入之后再检查一次,防止写入和失效交叉执行,把旧数据留在本地
+        if (stamp != version.get()) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * 失效某个key: 先加版本号, 再删除
+     */
+    public void invalidate(String key) {
+        version.incrementAndGet();
+        cache.remove(key);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+}
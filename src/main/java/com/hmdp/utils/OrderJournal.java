@@ -0,0 +1,572 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: OrderJournal
+ * @PackageName: com.hmdp.utils
+ * @Description: 秒杀订单的本地预写日志
+ * redis返回下单成功之后, 订单消息只在redis中(aof每秒刷盘, 主从切换可能丢失), 这里在本地磁盘再记一份
+ * 1. 日志按序号追加, 每条记录定长32字节: 订单id, 用户id, 优惠券id, crc, 魔数(最后写入, 用来判断记录是否完整)
+ * 2. 每个分段文件 SECKILL_JOURNAL_SEGMENT_RECORDS 条记录, 用内存映射写入, 写满后切换到下一个文件
+ * 3. 一个刷盘线程把已经写完的记录一起 force 到磁盘(组提交), 下单线程等待自己的记录刷盘
+ * 4. 订单落库的结果广播到所有节点后, 对应的记录算作完成; 检查点 = 最早未完成的记录, 检查点之前的分段文件删除
+ * 广播丢失时由定期检查从最早的记录开始查询结果, 结果已经过期的查数据库, 数据库也没有并且超过结果的过期时间的记录丢弃
+ * 5. 启动时从检查点开始扫描, 返回未完成的订单, 由调用方重新投递
+ * 6. 写入失败的序号写一条墓碑记录; 序号分配之后一直没有写完的空洞(写入线程卡住或者异常退出), 超过 SECKILL_JOURNAL_HOLE_TIMEOUT 跳过,
+ * 不让一个空洞挡住之后所有记录的刷盘
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+
+    private static final int RECORD_SIZE = 32;
+    private static final int MAGIC = 0x4A524E4C;
+    /**
+     * 墓碑记录的魔数: 序号已经分配但写入失败, 刷盘时跳过, 恢复时忽略
+     */
+    private static final int TOMBSTONE = 0x544F4D42;
+    private static final String SEGMENT_PREFIX = "orders-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    private final File dir;
+    private final int segmentRecords;
+    private final long segmentBytes;
+    private final Map<Long, Segment> segments = new ConcurrentHashMap<>();
+    private FileChannel checkpointChannel;
+
+    /**
+     * 下一条记录的序号, 已经刷盘的序号(不含), 已经持久化的检查点
+     */
+    private final AtomicLong writeSeq = new AtomicLong();
+    private volatile long flushedSeq;
+    private long checkpoint;
+    private long lastSweepTime;
+    /**
+     * 时钟, 测试结果过期时替换
+     */
+    private volatile Clock clock = Clock.systemUTC();
+    /**
+     * 刷盘停住的空洞序号, 以及第一次发现的时间
+     */
+    private long holeSeq = -1;
+    private long holeSince;
+
+    /**
+     * 未完成的订单: 订单id -> 记录序号, 以及按序号排序的订单(最小值就是检查点)
+     */
+    private final Map<Long, Long> openOrders = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, OpenOrder> openSeqs = new ConcurrentSkipListMap<>();
+
+    /**
+     * 启动时恢复出的未完成订单
+     */
+    private final List<VoucherOrder> recovered = new ArrayList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dirty = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNamePrefix("order-journal-").build());
+    private volatile boolean running = true;
+
+    private final LongAdder appendCount = new LongAdder();
+    private final LongAdder flushCount = new LongAdder();
+    private final LongAdder syncTimeoutCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder skippedHoleCount = new LongAdder();
+    private final LongAdder resolvedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final Histogram flushMicros = new Histogram(24);
+    private final Histogram groupSize = new Histogram(16);
+
+    public OrderJournal() {
+        this(new File(SECKILL_JOURNAL_DIR), SECKILL_JOURNAL_SEGMENT_RECORDS);
+    }
+
+    /**
+     * @param dir            日志目录
+     * @param segmentRecords 每个分段文件的记录数
+     */
+    public OrderJournal(File dir, int segmentRecords) {
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+        this.segmentBytes = (long) segmentRecords * RECORD_SIZE;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!SECKILL_JOURNAL_ENABLED) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("创建订单日志目录失败: " + dir.getAbsolutePath());
+        }
+        lastSweepTime = clock.millis();
+        recover();
+        seckillOrderStatus.onComplete((orderId, code) -> complete(orderId));
+        flusher.submit(this::flushLoop);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (!SECKILL_JOURNAL_ENABLED) {
+            return;
+        }
+        running = false;
+        flusher.shutdownNow();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+            saveCheckpoint();
+        } catch (Exception e) {
+            log.warn("关闭时保存订单日志检查点失败", e);
+        }
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        if (checkpointChannel != null) {
+            try {
+                checkpointChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 追加一条订单记录, 等待刷盘(最多 SECKILL_JOURNAL_SYNC_TIMEOUT 毫秒)
+     * 日志只是redis之外的备份, 写入失败时记录墓碑并返回, 不影响下单
+     */
+    public void append(VoucherOrder order) {
+        if (!SECKILL_JOURNAL_ENABLED) {
+            return;
+        }
+        long seq = writeSeq.getAndIncrement();
+        openOrders.put(order.getId(), seq);
+        openSeqs.put(seq, new OpenOrder(order.getId(), clock.millis()));
+        try {
+            write(seq, order);
+        } catch (RuntimeException e) {
+            failedCount.increment();
+            complete(order.getId());
+            tombstone(seq);
+            log.error("写入订单日志失败, 订单id:{}, 序号:{}", order.getId(), seq, e);
+            return;
+        }
+        appendCount.increment();
+        if (SECKILL_JOURNAL_SYNC) {
+            awaitFlushed(seq);
+        }
+    }
+
+    /**
+     * 订单已经有最终结果, 对应的记录不再需要重新投递
+     */
+    public void complete(Long orderId) {
+        Long seq = openOrders.remove(orderId);
+        if (seq != null) {
+            openSeqs.remove(seq);
+        }
+    }
+
+    /**
+     * 启动时恢复出的未完成订单, 只能取一次
+     */
+    public synchronized List<VoucherOrder> takeRecovered() {
+        List<VoucherOrder> list = new ArrayList<>(recovered);
+        recovered.clear();
+        return list;
+    }
+
+    private void write(long seq, VoucherOrder order) {
+        ByteBuffer buffer = segment(seq / segmentRecords).buffer;
+        int offset = (int) (seq % segmentRecords) * RECORD_SIZE;
+        buffer.putLong(offset, order.getId());
+        buffer.putLong(offset + 8, order.getUserId());
+        buffer.putLong(offset + 16, order.getVoucherId());
+        buffer.putInt(offset + 24, crc(order.getId(), order.getUserId(), order.getVoucherId()));
+        buffer.putInt(offset + 28, MAGIC);
+    }
+
+    /**
+     * 写入失败的序号标记为墓碑, 分段文件都打不开时只能留下空洞, 由刷盘线程超时跳过
+     */
+    private void tombstone(long seq) {
+        try {
+            ByteBuffer buffer = segment(seq / segmentRecords).buffer;
+            int offset = (int) (seq % segmentRecords) * RECORD_SIZE;
+            buffer.putInt(offset + 28, TOMBSTONE);
+        } catch (RuntimeException e) {
+            log.warn("写入墓碑记录失败, 序号:{}", seq, e);
+        }
+    }
+
+    /**
+     * 是否是墓碑记录
+     */
+    private boolean isTombstone(long seq) {
+        Segment segment = segments.get(seq / segmentRecords);
+        return segment != null && segment.buffer.getInt((int) (seq % segmentRecords) * RECORD_SIZE + 28) == TOMBSTONE;
+    }
+
+    /**
+     * 读取一条记录, 没有写完或者损坏返回null
+     */
+    private VoucherOrder read(long seq) {
+        Segment segment = segments.get(seq / segmentRecords);
+        if (segment == null) {
+            return null;
+        }
+        ByteBuffer buffer = segment.buffer;
+        int offset = (int) (seq % segmentRecords) * RECORD_SIZE;
+        if (buffer.getInt(offset + 28) != MAGIC) {
+            return null;
+        }
+        long orderId = buffer.getLong(offset);
+        long userId = buffer.getLong(offset + 8);
+        long voucherId = buffer.getLong(offset + 16);
+        if (buffer.getInt(offset + 24) != crc(orderId, userId, voucherId)) {
+            return null;
+        }
+        VoucherOrder order = new VoucherOrder();
+        order.setId(orderId);
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        return order;
+    }
+
+    private static int crc(long orderId, long userId, long voucherId) {
+        ByteBuffer bytes = ByteBuffer.allocate(24);
+        bytes.putLong(orderId).putLong(userId).putLong(voucherId);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, 24);
+        return (int) crc.getValue();
+    }
+
+    private void awaitFlushed(long seq) {
+        lock.lock();
+        try {
+            dirty.signal();
+            long nanos = TimeUnit.MILLISECONDS.toNanos(SECKILL_JOURNAL_SYNC_TIMEOUT);
+            while (flushedSeq <= seq) {
+                if (nanos <= 0) {
+                    syncTimeoutCount.increment();
+                    return;
+                }
+                nanos = flushed.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 刷盘线程: 有新记录就把已经写完的部分一起刷盘, 唤醒等待的下单线程; 空闲时更新检查点
+     * 停在空洞上时每毫秒检查一次, 不空转
+     */
+    private void flushLoop() {
+        boolean stalled = false;
+        while (running) {
+            try {
+                lock.lock();
+                try {
+                    if (flushedSeq == writeSeq.get()) {
+                        dirty.await(SECKILL_JOURNAL_CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+                    } else if (stalled) {
+                        dirty.await(1, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                stalled = !flush();
+                if (clock.millis() - lastSweepTime >= SECKILL_STREAM_CLAIM_IDLE) {
+                    lastSweepTime = clock.millis();
+                    sweep();
+                }
+                saveCheckpoint();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("订单日志刷盘失败", e);
+            }
+        }
+    }
+
+    /**
+     * @return 是否有记录刷盘
+     */
+    private boolean flush() {
+        long from = flushedSeq;
+        long to = from;
+        long limit = writeSeq.get();
+        //只刷已经写完的连续记录, 序号已经分配但还在写的记录留到下一次
+        while (to < limit) {
+            if (read(to) != null || isTombstone(to)) {
+                to++;
+            } else if (skipHole(to)) {
+                to++;
+            } else {
+                break;
+            }
+        }
+        if (to == from) {
+            return false;
+        }
+        long begin = System.nanoTime();
+        for (long index = from / segmentRecords; index <= (to - 1) / segmentRecords; index++) {
+            segment(index).buffer.force();
+        }
+        flushMicros.record((System.nanoTime() - begin) / 1000);
+        groupSize.record(to - from);
+        flushCount.increment();
+        lock.lock();
+        try {
+            flushedSeq = to;
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        //提前创建下一个分段文件, 切换时不用等待
+        if (to % segmentRecords > segmentRecords / 2) {
+            segment(to / segmentRecords + 1);
+        }
+        return true;
+    }
+
+    /**
+     * 空洞是否已经超时. 跳过之后写入线程再写完的记录, 会在之后的刷盘中一起落盘(force刷的是整个分段)
+     */
+    private boolean skipHole(long seq) {
+        long now = System.currentTimeMillis();
+        if (holeSeq != seq) {
+            holeSeq = seq;
+            holeSince = now;
+            return false;
+        }
+        if (now - holeSince < SECKILL_JOURNAL_HOLE_TIMEOUT) {
+            return false;
+        }
+        skippedHoleCount.increment();
+        log.warn("订单日志序号{}超过{}ms没有写完, 跳过", seq, SECKILL_JOURNAL_HOLE_TIMEOUT);
+        return true;
+    }
+
+    /**
+     * 结果广播是pub/sub, 可能丢失. 超过一个检查周期还没有完成的订单, 按序号从最早的开始直接查询结果
+     * 结果已经过期(SECKILL_STATUS_TTL)时查数据库: 已经落库的完成; 没有落库并且超过结果的过期时间的丢弃, 不让它一直挡住检查点
+     */
+    private void sweep() {
+        long now = clock.millis();
+        int checked = 0;
+        for (OpenOrder open : openSeqs.values()) {
+            //按序号递增, 之后的记录写入得更晚
+            if (now - open.time < SECKILL_STREAM_CLAIM_IDLE || checked++ >= SECKILL_JOURNAL_SWEEP_BATCH) {
+                break;
+            }
+            Integer code = seckillOrderStatus.get(open.orderId);
+            if (code != null) {
+                if (code != SeckillOrderStatus.PENDING) {
+                    complete(open.orderId);
+                }
+                continue;
+            }
+            if (voucherOrderMapper.selectById(open.orderId) != null) {
+                resolvedCount.increment();
+                complete(open.orderId);
+            } else if (now - open.time >= TimeUnit.SECONDS.toMillis(SECKILL_STATUS_TTL)) {
+                droppedCount.increment();
+                complete(open.orderId);
+                log.warn("订单超过{}秒没有结果也没有落库, 从订单日志中丢弃, 订单id:{}", SECKILL_STATUS_TTL, open.orderId);
+            }
+        }
+    }
+
+    /**
+     * 检查点 = 最早未完成的记录, 没有未完成的记录时为已经刷盘的位置. 删除检查点之前的分段文件
+     */
+    private void saveCheckpoint() throws IOException {
+        long current = flushedSeq;
+        Map.Entry<Long, OpenOrder> first = openSeqs.firstEntry();
+        if (first != null && first.getKey() < current) {
+            current = first.getKey();
+        }
+        if (current == checkpoint) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(8);
+        bytes.putLong(0, current);
+        checkpointChannel.write(bytes, 0);
+        checkpoint = current;
+        for (Long index : new ArrayList<>(segments.keySet())) {
+            if (index < checkpoint / segmentRecords) {
+                Segment segment = segments.remove(index);
+                segment.close();
+                if (!segment.file.delete()) {
+                    log.warn("删除订单日志失败: {}", segment.file);
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取检查点, 从检查点扫描到最后一个分段的末尾, 收集完整的记录
+     * 崩溃时可能有序号分配了但没有写完的空洞, 所以遇到空洞不停止
+     */
+    private void recover() throws IOException {
+        File checkpointFile = new File(dir, "checkpoint");
+        checkpointChannel = new RandomAccessFile(checkpointFile, "rw").getChannel();
+        TreeSet<Long> indexes = new TreeSet<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                indexes.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        long start = indexes.isEmpty() ? 0 : indexes.first() * segmentRecords;
+        if (checkpointChannel.size() >= 8) {
+            ByteBuffer bytes = ByteBuffer.allocate(8);
+            checkpointChannel.read(bytes, 0);
+            start = Math.max(start, bytes.getLong(0));
+        }
+        long end = start;
+        for (Long index : indexes) {
+            if (index < start / segmentRecords) {
+                //检查点之前的分段
+                if (!segmentFile(index).delete()) {
+                    log.warn("删除订单日志失败: {}", segmentFile(index));
+                }
+                continue;
+            }
+            segment(index);
+            end = (index + 1) * segmentRecords;
+        }
+        long next = start;
+        for (long seq = start; seq < end; seq++) {
+            VoucherOrder order = read(seq);
+            if (order == null) {
+                continue;
+            }
+            recovered.add(order);
+            openOrders.put(order.getId(), seq);
+            openSeqs.put(seq, new OpenOrder(order.getId(), clock.millis()));
+            next = seq + 1;
+        }
+        writeSeq.set(next);
+        flushedSeq = next;
+        checkpoint = start;
+        log.info("订单日志恢复完成, 检查点:{}, 未完成订单:{}", start, recovered.size());
+    }
+
+    private Segment segment(long index) {
+        return segments.computeIfAbsent(index, i -> {
+            File file = segmentFile(i);
+            try {
+                return new Segment(file, segmentBytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("创建订单日志失败: " + file, e);
+            }
+        });
+    }
+
+    private File segmentFile(long index) {
+        return new File(dir, SEGMENT_PREFIX + String.format("%012d", index) + SEGMENT_SUFFIX);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", SECKILL_JOURNAL_ENABLED);
+        stats.put("writeSeq", writeSeq.get());
+        stats.put("flushedSeq", flushedSeq);
+        stats.put("checkpoint", checkpoint);
+        stats.put("segments", segments.size());
+        stats.put("openOrders", openOrders.size());
+        stats.put("appendCount", appendCount.sum());
+        stats.put("flushCount", flushCount.sum());
+        stats.put("syncTimeoutCount", syncTimeoutCount.sum());
+        stats.put("failedCount", failedCount.sum());
+        stats.put("skippedHoleCount", skippedHoleCount.sum());
+        stats.put("resolvedCount", resolvedCount.sum());
+        stats.put("droppedCount", droppedCount.sum());
+        stats.put("groupSize", groupSize.snapshot());
+        stats.put("flushMicros", flushMicros.snapshot());
+        return stats;
+    }
+
+    /**
+     * 未完成的订单, 以及写入(或者启动时恢复)的时间
+     */
+    private static class OpenOrder {
+        final long orderId;
+        final long time;
+
+        OpenOrder(long orderId, long time) {
+            this.orderId = orderId;
+            this.time = time;
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(File file, long size) throws IOException {
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * @Author: lemme
+ * @ClassName: OrderRingBuffer
+ * @PackageName: com.hmdp.utils
+ * @Description: 订单的环形缓冲区, 多个生产者一个消费者, 无锁
+ * 1. 槽位在创建时分配好, 只修改槽位中的字段, 运行时不创建对象
+ * 2. 生产者CAS一次申请多个连续的槽位, 写完后逐个标记为可读(标记值是圈数, 不用清除)
+ * 3. 消费者一次取走所有连续可读的槽位
+ * 4. 缓冲区满时申请失败(返回-1), 由调用方决定等待还是拒绝
+ * 5. PARK策略下空闲的消费者登记后挂起, 生产者发布时唤醒, 不靠定时醒来轮询
+ */
+public class OrderRingBuffer {
+
+    /**
+     * 没有数据(消费者)或者没有空间(生产者)时的等待方式
+     */
+    public enum WaitStrategy {
+        /**
+         * 自旋, 延迟最低, 占满一个核
+         */
+        BUSY_SPIN,
+        /**
+         * 让出cpu
+         */
+        YIELD,
+        /**
+         * 先自旋, 再让出cpu, 最后挂起. 消费者挂起后由生产者唤醒, 生产者挂起的时间逐渐加长, 空闲时几乎不占cpu
+         */
+        PARK;
+
+        public void idle(int round) {
+            switch (this) {
+                case BUSY_SPIN:
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    if (round > PARK_ROUND) {
+                        //50us, 100us, 200us ... 最长PARK_MAX_NANOS
+                        LockSupport.parkNanos(Math.min(PARK_NANOS << Math.min(round - PARK_ROUND - 1, 10), PARK_MAX_NANOS));
+                    } else if (round > 100) {
+                        Thread.yield();
+                    }
+            }
+        }
+    }
+
+    /**
+     * 一个槽位, 字段可以修改, 只能在申请到之后和消费时访问
+     */
+    public static final class Slot {
+        public long orderId;
+        public long userId;
+        public long voucherId;
+        public String recordId;
+    }
+
+    /**
+     * 自旋和让出cpu多少轮之后挂起, 第一次挂起的时间, 最长挂起时间
+     * 消费者挂起时也最多PARK_MAX_NANOS, 唤醒信号万一错过, 延迟也有上限
+     */
+    private static final int PARK_ROUND = 200;
+    private static final long PARK_NANOS = 50_000L;
+    private static final long PARK_MAX_NANOS = 10_000_000L;
+
+    private final int mask;
+    private final int shift;
+    private final Slot[] slots;
+    /**
+     * 每个槽位最后一次写入时的圈数(序号 >>> shift), 等于当前圈数说明可读
+     */
+    private final AtomicIntegerArray available;
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * 生产者已经申请到的最大序号
+     */
+    private final PaddedSequence cursor = new PaddedSequence(-1);
+    /**
+     * 消费者已经消费的最大序号
+     */
+    private final PaddedSequence consumed = new PaddedSequence(-1);
+    /**
+     * 生产者缓存的消费进度, 减少读取消费者序号(缓存行在核之间来回传递)
+     */
+    private final PaddedSequence consumedCache = new PaddedSequence(-1);
+    /**
+     * 挂起等待数据的消费者线程, 没有挂起时为null
+     */
+    private volatile Thread waiter;
+
+    public OrderRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("容量必须是2的幂: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfTrailingZeros(capacity);
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        this.available = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            available.lazySet(i, -1);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * 申请n个连续的槽位
+     *
+     * @return 第一个槽位的序号, 空间不够返回-1(背压)
+     */
+    public long tryClaim(int n) {
+        if (n <= 0 || n > slots.length) {
+            throw new IllegalArgumentException("申请的槽位数量错误: " + n);
+        }
+        while (true) {
+            long current = cursor.get();
+            long next = current + n;
+            long wrapPoint = next - slots.length;
+            if (wrapPoint > consumedCache.get()) {
+                long min = consumed.get();
+                consumedCache.set(min);
+                if (wrapPoint > min) {
+                    return -1;
+                }
+            }
+            if (cursor.compareAndSet(current, next)) {
+                return current + 1;
+            }
+        }
+    }
+
+    /**
+     * 申请n个连续的槽位, 空间不够时按等待策略等待, 最多等待timeoutNanos
+     *
+     * @return 第一个槽位的序号, 超时返回-1
+     */
+    public long claim(int n, long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        int round = 0;
+        long seq;
+        while ((seq = tryClaim(n)) < 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return -1;
+            }
+            waitStrategy.idle(++round);
+        }
+        return seq;
+    }
+
+    public Slot get(long seq) {
+        return slots[(int) seq & mask];
+    }
+
+    /**
+     * 标记 [lo, hi] 的槽位可读, 消费者挂起时唤醒
+     * 最后一个槽位用volatile写, 和之后读取waiter不会重排, 与消费者先登记再检查的顺序配合, 不会两边都错过
+     */
+    public void publish(long lo, long hi) {
+        for (long seq = lo; seq < hi; seq++) {
+            available.lazySet((int) seq & mask, (int) (seq >>> shift));
+        }
+        available.set((int) hi & mask, (int) (hi >>> shift));
+        Thread t = waiter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * 写入一个订单
+     *
+     * @return 缓冲区已满返回false
+     */
+    public boolean tryPublish(long orderId, long userId, long voucherId, String recordId) {
+        long seq = tryClaim(1);
+        if (seq < 0) {
+            return false;
+        }
+        Slot slot = get(seq);
+        slot.orderId = orderId;
+        slot.userId = userId;
+        slot.voucherId = voucherId;
+        slot.recordId = recordId;
+        publish(seq, seq);
+        return true;
+    }
+
+    /**
+     * 取走最多max个连续可读的槽位, 不等待. 只能在消费者线程中调用
+     * 回调返回之后槽位就可能被生产者覆盖, 需要的字段要在回调中复制出去
+     *
+     * @return 取走的数量
+     */
+    public int drain(int max, Consumer<Slot> handler) {
+        long from = consumed.get() + 1;
+        long to = from;
+        long limit = from + max;
+        while (to < limit && available.get((int) to & mask) == (int) (to >>> shift)) {
+            to++;
+        }
+        for (long seq = from; seq < to; seq++) {
+            handler.accept(slots[(int) seq & mask]);
+        }
+        if (to > from) {
+            //释放槽位
+            consumed.set(to - 1);
+        }
+        return (int) (to - from);
+    }
+
+    /**
+     * 等待有可读的槽位, 最多等待timeoutNanos. 只能在消费者线程中调用
+     *
+     * @return 是否有可读的槽位
+     */
+    public boolean await(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        int round = 0;
+        while (!hasAvailable()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            round++;
+            if (waitStrategy == WaitStrategy.PARK && round > PARK_ROUND) {
+                //先登记再检查一次, 检查之后发布的生产者一定能看到登记
+                waiter = Thread.currentThread();
+                if (!hasAvailable()) {
+                    LockSupport.parkNanos(this, Math.min(deadline - System.nanoTime(), PARK_MAX_NANOS));
+                }
+                waiter = null;
+            } else {
+                waitStrategy.idle(round);
+            }
+        }
+        return true;
+    }
+
+    private boolean hasAvailable() {
+        long next = consumed.get() + 1;
+        return available.get((int) next & mask) == (int) (next >>> shift);
+    }
+
+    /**
+     * 已经申请但还没有消费的数量
+     */
+    public int size() {
+        return (int) (cursor.get() - consumed.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * 填充之后的序号, 生产者和消费者的序号不在同一个缓存行, 避免伪共享
+     */
+    @SuppressWarnings("unused")
+    private static final class PaddedSequence extends AtomicLong {
+        private long p1, p2, p3, p4, p5, p6, p7;
+
+        PaddedSequence(long initialValue) {
+            super(initialValue);
+        }
+    }
+}
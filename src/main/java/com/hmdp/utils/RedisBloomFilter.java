@@ -0,0 +1,55 @@
+package com.hmdp.utils;
+
+import org.redisson.api.RBloomFilter;
+
+/**
+ * @Author: lemme
+ * @ClassName: RedisBloomFilter
+ * @PackageName: com.hmdp.utils
+ * @Description: 基于Redisson的布隆过滤器, 位数组保存在redis的bitmap中, 所有节点共享
+ */
+public class RedisBloomFilter implements BloomFilter {
+
+    private final RBloomFilter<String> bloomFilter;
+
+    public RedisBloomFilter(RBloomFilter<String> bloomFilter, long expectedInsertions, double falseProbability) {
+        this.bloomFilter = bloomFilter;
+        //已经存在(其他节点初始化过)时返回false, 沿用已有的配置
+        bloomFilter.tryInit(expectedInsertions, falseProbability);
+    }
+
+    @Override
+    public boolean mightContain(String id) {
+        return bloomFilter.contains(id);
+    }
+
+    @Override
+    public void put(String id) {
+        bloomFilter.add(id);
+    }
+
+    @Override
+    public long getExpectedInsertions() {
+        return bloomFilter.getExpectedInsertions();
+    }
+
+    @Override
+    public double getFalseProbability() {
+        return bloomFilter.getFalseProbability();
+    }
+
+    @Override
+    public long getBitSize() {
+        return bloomFilter.getSize();
+    }
+
+    @Override
+    public int getHashIterations() {
+        return bloomFilter.getHashIterations();
+    }
+
+    @Override
+    public long count() {
+        return bloomFilter.count();
+    }
+}
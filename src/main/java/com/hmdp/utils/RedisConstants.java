@@ -29,15 +29,285 @@ public class RedisConstants {
      * 首页商品类型缓存的key前缀
      */
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
+    /**
+     * 用户信息(UserDTO)缓存的key前缀
+     */
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    /**
+     * 过期时间抖动的比例, 在TTL基础上最多再加 TTL * 比例
+     */
+    public static final double CACHE_TTL_JITTER_RATIO = 0.1;
+    /**
+     * 过期时间抖动的分布
+     */
+    public static final TtlJitter.Distribution CACHE_TTL_JITTER_DISTRIBUTION = TtlJitter.Distribution.UNIFORM;
+    /**
+     * 统计过期时间分布时, 每批查询的key数量
+     */
+    public static final int CACHE_SCAN_BATCH = 500;
+    /**
+     * 启动预热: 每页读取的行数(也是一次pipeline写入的key数量), 写入线程数, 过期时间分散的窗口(分钟)
+     */
+    public static final int CACHE_WARMUP_BATCH = 1000;
+    public static final int CACHE_WARMUP_THREADS = 4;
+    public static final Long CACHE_WARMUP_SPREAD = 10L;
+    /**
+     * 热点key探测: 滑动窗口长度(毫秒), 窗口分成的格数, count-min sketch的行数和列数
+     */
+    public static final Long CACHE_HOT_WINDOW = 1000L;
+    public static final int CACHE_HOT_SLOTS = 10;
+    public static final int CACHE_HOT_DEPTH = 4;
+    public static final int CACHE_HOT_WIDTH = 2048;
+    /**
+     * 窗口内访问次数达到多少算热点
+     */
+    public static final int CACHE_HOT_THRESHOLD = 500;
+    /**
+     * 热点key探测的采样率: 每多少次访问记录一次(2的幂), 计数按采样率放大
+     */
+    public static final int CACHE_HOT_SAMPLE_RATE = 8;
+    /**
+     * 清理过期热点key的间隔(毫秒)
+     */
+    public static final long CACHE_HOT_SWEEP_INTERVAL = 10000L;
+    /**
+     * 热点状态保持多久(毫秒), 期间仍然是热点就续期
+     */
+    public static final Long CACHE_HOT_HOLD = 30000L;
+    /**
+     * 热点key本地副本的过期时间(毫秒)和最大条数
+     */
+    public static final Long CACHE_HOT_TTL = 2000L;
+    public static final int CACHE_HOT_MAX_SIZE = 1024;
+    /**
+     * 热点key广播频道
+     */
+    public static final String CACHE_HOT_KEY_CHANNEL = "cache:hot";
+    /**
+     * 本地缓存(L1)的最大条数
+     */
+    public static final int CACHE_LOCAL_MAX_SIZE = 4096;
+    /**
+     * 本地缓存(L1)的有效期(秒), 兜底失效广播丢失的情况
+     */
+    public static final Long CACHE_LOCAL_TTL = 60L;
+    /**
+     * 缓存失效广播的频道
+     */
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    /**
+     * 缓存写入时使用的编码: 0 旧格式(纯json), 1 带版本号的json, 2 二进制(没有注册Schema的类型仍然用json)
+     * 读取时三种格式都支持. 滚动升级时先用0发布, 全部节点升级完成后再改成2
+     */
+    public static final int CACHE_CODEC_VERSION = 0;
+    /**
+     * 超过这个字节数的缓存value会被压缩
+     */
+    public static final int CACHE_COMPRESS_THRESHOLD = 512;
+    /**
+     * 布隆过滤器是否放在redis中(所有节点共享), false表示放在本地
+     */
+    public static final boolean CACHE_BLOOM_SHARED = false;
+    /**
+     * 布隆过滤器在redis中的key前缀
+     */
+    public static final String CACHE_BLOOM_KEY = "bloom:";
+    /**
+     * 本地布隆过滤器新增id的广播频道
+     */
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom:add";
+    /**
+     * 布隆过滤器的误判率
+     */
+    public static final double CACHE_BLOOM_FPP = 0.01;
+    /**
+     * 布隆过滤器最少按多少数量初始化
+     */
+    public static final long CACHE_BLOOM_MIN_INSERTIONS = 10000L;
+    /**
+     * 启动时每批加载的id数量
+     */
+    public static final int CACHE_BLOOM_LOAD_BATCH = 1000;
+    /**
+     * 检查布隆过滤器是否装满的间隔(毫秒), 插入数量超过预计数量时按新的数量重建
+     */
+    public static final long CACHE_BLOOM_CHECK_INTERVAL = 60000L;
+    /**
+     * 共享模式下重建布隆过滤器: 当前代数的key, 通知其他节点开始和完成重建的频道, 只有一个节点重建的锁
+     */
+    public static final String CACHE_BLOOM_GEN_KEY = "bloom:gen:";
+    public static final String CACHE_BLOOM_REBUILD_CHANNEL = "cache:bloom:rebuild";
+    public static final String CACHE_BLOOM_REBUILD_LOCK_KEY = "lock:bloom:rebuild:";
+    /**
+     * 补漏加载的间隔(毫秒), 以及每次往回重叠扫描的id数量(id分配和提交的顺序不一定相同)
+     * 本地模式下新增id靠频道广播, 消息丢失时由补漏加载补上
+     */
+    public static final long CACHE_BLOOM_CATCHUP_INTERVAL = 30000L;
+    public static final long CACHE_BLOOM_CATCHUP_OVERLAP = 1000L;
     /**
      * 互斥锁id前缀
      */
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    /**
+     * 缓存重建互斥锁的前缀, 后面拼接完整的缓存key(不同的缓存前缀互不影响)
+     */
+    public static final String CACHE_LOCK_KEY = "lock:";
+    /**
+     * 缓存重建的线程数
+     */
+    public static final int CACHE_REBUILD_THREADS = 10;
+    /**
+     * 缓存重建的队列长度, 满了就丢弃任务
+     */
+    public static final int CACHE_REBUILD_QUEUE_SIZE = 1000;
+    /**
+     * 没拿到互斥锁时, 每次等待的时间(毫秒)
+     */
+    public static final long CACHE_MUTEX_WAIT = 50L;
+    /**
+     * 没拿到互斥锁时, 最多等待几次
+     */
+    public static final int CACHE_MUTEX_RETRY = 10;
+    /**
+     * 提前刷新(XFetch)的系数, 大于1更积极地提前刷新, 小于1更保守
+     */
+    public static final double CACHE_XFETCH_BETA = 1.0;
     /**
      * 秒杀库存id前缀
      */
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    /**
+     * 秒杀券元数据(hash): begin 开始时间, end 结束时间, 毫秒时间戳
+     */
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    /**
+     * 秒杀订单的处理结果: 按订单id分桶的hash, 每个桶的订单数, 过期时间(秒), 结果的广播频道
+     */
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    public static final long SECKILL_STATUS_BUCKET = 100L;
+    public static final long SECKILL_STATUS_TTL = 1800L;
+    public static final String SECKILL_STATUS_CHANNEL = "seckill:status";
+    /**
+     * 查询订单结果时最长等待的时间(毫秒)
+     */
+    public static final long SECKILL_STATUS_MAX_WAIT = 30000L;
+    /**
+     * 库存分片: 优惠券的分片数, 本地缓存分片数的时间(毫秒), 最大分片数
+     */
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final long SECKILL_SHARD_CACHE_TTL = 5000L;
+    public static final int SECKILL_SHARD_MAX = 64;
+    /**
+     * 全局id号段模式: 是否开启, 每段的序列号数量, 剩余多少比例时预取下一段, 等待预取结果的最长时间(毫秒)
+     */
+    public static final boolean ID_SEGMENT_ENABLED = true;
+    public static final long ID_SEGMENT_STEP = 10000L;
+    public static final double ID_SEGMENT_PREFETCH_RATIO = 0.2;
+    public static final long ID_SEGMENT_WAIT = 1000L;
+    /**
+     * 售罄标记的广播频道, 本地售罄标记的有效期(毫秒)
+     */
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final Long SECKILL_SOLD_OUT_TTL = 10000L;
+    /**
+     * 秒杀限流: 配置(hash), 配置修改的广播频道, 计数key前缀
+     */
+    public static final String SECKILL_LIMIT_CONFIG_KEY = "seckill:limiter:config";
+    public static final String SECKILL_LIMIT_CHANNEL = "seckill:limiter";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    /**
+     * 秒杀限流的默认配置: 每个节点每秒的令牌数和令牌桶容量, 每个窗口内每个优惠券/每个用户的请求上限, 窗口大小(毫秒)
+     */
+    public static final int SECKILL_LIMIT_LOCAL_RATE = 2000;
+    public static final int SECKILL_LIMIT_LOCAL_BURST = 500;
+    public static final int SECKILL_LIMIT_VOUCHER = 10000;
+    public static final int SECKILL_LIMIT_USER = 5;
+    public static final Long SECKILL_LIMIT_WINDOW = 1000L;
+    /**
+     * 秒杀订单的消息队列(stream)和消费者组
+     */
+    public static final String SECKILL_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_STREAM_GROUP = "g1";
+    /**
+     * 每个节点读取消息队列的线程数
+     */
+    public static final int SECKILL_STREAM_CONSUMERS = 2;
+    /**
+     * 每个节点的订单分区数(落库线程数), 以及每个分区的环形缓冲区大小(2的幂)
+     * 分区数固定, 不随机器的cpu核数变化: 用户按分区数取模, 各节点的分区和压测结果才可以比较
+     */
+    public static final int SECKILL_ORDER_PARTITIONS = 8;
+    public static final int SECKILL_ORDER_QUEUE_SIZE = 1 << 14;
+    /**
+     * 分区缓冲区空闲(消费者)或者已满(读取消息的线程)时的等待方式
+     */
+    public static final OrderRingBuffer.WaitStrategy SECKILL_ORDER_WAIT_STRATEGY = OrderRingBuffer.WaitStrategy.PARK;
+    /**
+     * 每次最多读取的消息数, 没有消息时阻塞等待的时间(毫秒)
+     */
+    public static final int SECKILL_STREAM_BATCH = 10;
+    public static final Long SECKILL_STREAM_BLOCK = 2000L;
+    /**
+     * 消息超过多久(毫秒)没有确认, 就认领过来重新处理(原来的消费者可能已经宕机)
+     */
+    public static final Long SECKILL_STREAM_CLAIM_IDLE = 60000L;
+    /**
+     * 订单批量落库: 一批最多多少个订单, 第一条消息到达后最多再等多久(毫秒)凑批
+     */
+    public static final int SECKILL_ORDER_BATCH_SIZE = 500;
+    public static final Long SECKILL_ORDER_BATCH_LINGER = 20L;
+    /**
+     * 秒杀订单的本地日志: 是否开启, 目录, 每个分段文件的记录数
+     */
+    public static final boolean SECKILL_JOURNAL_ENABLED = true;
+    public static final String SECKILL_JOURNAL_DIR = "data/journal";
+    public static final int SECKILL_JOURNAL_SEGMENT_RECORDS = 1 << 20;
+    /**
+     * 下单时是否等待日志刷盘, 最长等待时间(毫秒)
+     */
+    public static final boolean SECKILL_JOURNAL_SYNC = true;
+    public static final long SECKILL_JOURNAL_SYNC_TIMEOUT = 50L;
+    /**
+     * 空闲时更新检查点的间隔(毫秒), 每次最多查询多少个遗漏结果的订单
+     */
+    public static final long SECKILL_JOURNAL_CHECKPOINT_INTERVAL = 1000L;
+    public static final int SECKILL_JOURNAL_SWEEP_BATCH = 1000;
+    /**
+     * 订单日志中的空洞(序号已经分配但一直没有写完)超过多久(毫秒)跳过, 否则之后的记录永远不会刷盘
+     */
+    public static final long SECKILL_JOURNAL_HOLE_TIMEOUT = 1000L;
+    /**
+     * 秒杀库存对账: 间隔(毫秒), 每次对账的秒杀券数量, 结束多久(秒)之内的秒杀券仍然对账, 扫描已下单用户的批次大小
+     */
+    public static final long SECKILL_RECONCILE_INTERVAL = 60000L;
+    public static final int SECKILL_RECONCILE_BATCH = 100;
+    public static final long SECKILL_RECONCILE_GRACE = 86400L;
+    public static final int SECKILL_RECONCILE_SCAN_BATCH = 500;
+    /**
+     * 对账时是否自动修复, 多个节点只有拿到锁的节点执行对账
+     */
+    public static final boolean SECKILL_RECONCILE_REPAIR = false;
+    public static final String SECKILL_RECONCILE_LOCK_KEY = "lock:seckill:reconcile";
+    /**
+     * 秒杀券生命周期: 开始前多久预热(毫秒), 结束后多久清理(毫秒, 等待订单落库), 启动时加载结束多久(秒)之内的秒杀券
+     */
+    public static final long SECKILL_PREHEAT_AHEAD = 600000L;
+    public static final long SECKILL_RETIRE_DELAY = 3600000L;
+    public static final long SECKILL_LIFECYCLE_LOOKBACK = 604800L;
+    /**
+     * 启动时分页加载秒杀券的每页行数
+     */
+    public static final int SECKILL_LIFECYCLE_LOAD_BATCH = 1000;
+    /**
+     * 执行预热和清理的线程数, 失败后多久重试(毫秒), 归档已下单用户的批次大小
+     */
+    public static final int SECKILL_LIFECYCLE_THREADS = 2;
+    public static final long SECKILL_LIFECYCLE_RETRY = 60000L;
+    public static final int SECKILL_ARCHIVE_BATCH = 500;
+    public static final String SECKILL_RETIRE_LOCK_KEY = "lock:seckill:retire:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -10,5 +10,9 @@ public class RedisData {
      * 逻辑过期时间
      */
     private LocalDateTime expireTime;
+    /**
+     * 上一次重建缓存的耗时(毫秒), 提前刷新时用来计算提前量
+     */
+    private Long rebuildCost;
     private Object data;
 }
@@ -1,19 +1,32 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.Clock;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * @Author: lemme
  * @ClassName: RedisIdWorker
  * @PackageName: com.hmdp.utils
  * @Description: Redis实现全局唯一id
+ * id = 时间戳(秒) << 32 | 当天的序列号
+ * 号段模式: 一次INCRBY从redis租一段序列号(例如10000个), 在本地用原子计数器发号, 用到还剩20%时异步预取下一段.
+ * id的位布局不变, 号段属于租用时的日期, 跨天后作废, 所以不会和新的一天的序列号重复
  */
+@Slf4j
 @Component
 public class RedisIdWorker {
     @Resource
@@ -27,6 +40,47 @@ public class RedisIdWorker {
      * 序列号位数
      */
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyy:MM:dd");
+
+    /**
+     * 是否使用号段模式
+     */
+    private volatile boolean segmentMode = ID_SEGMENT_ENABLED;
+
+    /**
+     * key前缀 -> 号段
+     */
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    /**
+     * 预取下一个号段的线程
+     */
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNamePrefix("id-segment-").setDaemon(true).build());
+
+    /**
+     * 日期缓存, 同一天不用重复格式化
+     */
+    private volatile DateKey dateKey = new DateKey(-1, null);
+
+    /**
+     * 时钟, 测试跨天时替换
+     */
+    private volatile Clock clock = Clock.systemDefaultZone();
+
+    public void setSegmentMode(boolean segmentMode) {
+        this.segmentMode = segmentMode;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
 
     /**
      * 时间戳+序列号
@@ -35,18 +89,155 @@ public class RedisIdWorker {
      * @return 全局唯一id
      */
     public long nextId(String keyPrefix) {
+        return segmentMode ? nextSegmentId(keyPrefix) : nextIncrId(keyPrefix);
+    }
+
+    /**
+     * 每个id执行一次INCR
+     */
+    private long nextIncrId(String keyPrefix) {
         //生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = LocalDateTime.now(clock).toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         //生成序列号
         //获取当前日期 精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyy:MM:dd"));
+        String date = date(nowSecond / SECONDS_PER_DAY);
         //自增长
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
         // 拼接并返回
         return timestamp << COUNT_BITS | count;
     }
+
+    /**
+     * 号段模式, 本地发号
+     */
+    private long nextSegmentId(String keyPrefix) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            long nowSecond = LocalDateTime.now(clock).toEpochSecond(ZoneOffset.UTC);
+            long day = nowSecond / SECONDS_PER_DAY;
+            Segment segment = buffer.current;
+            if (segment == null || segment.day != day) {
+                //还没有号段或者跨天了, 同步租用当天的号段
+                buffer.switchDay(segment, day);
+                continue;
+            }
+            long count = segment.cursor.getAndIncrement();
+            if (count == segment.prefetchAt) {
+                buffer.prefetch(segment);
+            }
+            if (count <= segment.max) {
+                return (nowSecond - BEGIN_TIMESTAMP) << COUNT_BITS | count;
+            }
+            //号段用完了, 换成下一段
+            buffer.next(segment);
+        }
+    }
+
+    private String date(long day) {
+        DateKey key = dateKey;
+        if (key.day != day) {
+            key = new DateKey(day, LocalDate.ofEpochDay(day).format(DATE_FORMATTER));
+            dateKey = key;
+        }
+        return key.date;
+    }
+
+    /**
+     * 租用一个号段: INCRBY step, 返回值是这一段的最大值
+     */
+    private Segment lease(String keyPrefix, long day) {
+        Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date(day), ID_SEGMENT_STEP);
+        if (max == null) {
+            throw new IllegalStateException("号段租用失败: " + keyPrefix);
+        }
+        return new Segment(day, max - ID_SEGMENT_STEP + 1, max);
+    }
+
+    /**
+     * 一段连续的序列号 [cursor, max]
+     */
+    private static class Segment {
+        final long day;
+        final AtomicLong cursor;
+        final long max;
+        /**
+         * 发到这个号时预取下一段
+         */
+        final long prefetchAt;
+
+        Segment(long day, long min, long max) {
+            this.day = day;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+            this.prefetchAt = max - (long) (ID_SEGMENT_STEP * ID_SEGMENT_PREFETCH_RATIO);
+        }
+    }
+
+    /**
+     * 一个key前缀的双号段: 正在使用的和预取的
+     */
+    private class SegmentBuffer {
+        final String keyPrefix;
+        volatile Segment current;
+        /**
+         * 预取中或者已经预取好的下一段
+         */
+        volatile CompletableFuture<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        synchronized void prefetch(Segment segment) {
+            if (current != segment || next != null) {
+                //号段已经被换掉了
+                return;
+            }
+            next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, segment.day), prefetchExecutor);
+        }
+
+        synchronized void next(Segment used) {
+            if (current != used) {
+                //其他线程已经换过了
+                return;
+            }
+            CompletableFuture<Segment> future = next;
+            next = null;
+            Segment segment = null;
+            if (future != null) {
+                try {
+                    segment = future.get(ID_SEGMENT_WAIT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | TimeoutException e) {
+                    log.warn("预取号段失败, 同步租用: {}", keyPrefix, e);
+                }
+            }
+            if (segment == null || segment.day != used.day) {
+                segment = lease(keyPrefix, used.day);
+            }
+            current = segment;
+        }
+
+        synchronized void switchDay(Segment used, long day) {
+            if (current != used) {
+                return;
+            }
+            next = null;
+            current = lease(keyPrefix, day);
+        }
+    }
+
+    private static class DateKey {
+        final long day;
+        final String date;
+
+        DateKey(long day, String date) {
+            this.day = day;
+            this.date = date;
+        }
+    }
 }
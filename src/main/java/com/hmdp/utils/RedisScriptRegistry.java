@@ -0,0 +1,183 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.crypto.SecureUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Author: lemme
+ * @ClassName: RedisScriptRegistry
+ * @PackageName: com.hmdp.utils
+ * @Description: 所有lua脚本的注册中心
+ * 启动时用一次pipeline把所有脚本 SCRIPT LOAD 到redis, 调用时只发送sha1(EVALSHA), 不再发送脚本内容
+ * redis重启或者切换后脚本缓存丢失会返回NOSCRIPT, 这时用EVAL执行一次(同时重新缓存脚本)
+ * 统计每个脚本的调用次数和耗时
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+
+    /**
+     * 秒杀
+     */
+    public static final String SECKILL = "Seckill";
+    /**
+     * 分片库存的秒杀, 从其他分片扣库存
+     */
+    public static final String SECKILL_SHARD = "SeckillShard";
+    public static final String SECKILL_SHARD_TAKE = "SeckillShardTake";
+    /**
+     * 库存拆分/重新拆分
+     */
+    public static final String SECKILL_SHARD_SPLIT = "SeckillShardSplit";
+    /**
+     * 秒杀限流
+     */
+    public static final String SECKILL_LIMITER = "SeckillLimiter";
+    /**
+     * 释放锁
+     */
+    public static final String UNLOCK = "Unlock";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        register(SECKILL);
+        register(SECKILL_SHARD);
+        register(SECKILL_SHARD_TAKE);
+        register(SECKILL_SHARD_SPLIT);
+        register(SECKILL_LIMITER);
+        register(UNLOCK);
+        loadAll();
+    }
+
+    /**
+     * 注册classpath下的脚本 {name}.lua, 返回值都是整数
+     */
+    public void register(String name) {
+        ClassPathResource resource = new ClassPathResource(name + ".lua");
+        try (InputStream in = resource.getInputStream()) {
+            byte[] source = IoUtil.readBytes(in);
+            scripts.put(name, new Script(name, source, SecureUtil.sha1().digestHex(source)));
+        } catch (IOException e) {
+            throw new IllegalStateException("加载lua脚本失败: " + resource.getPath(), e);
+        }
+    }
+
+    /**
+     * 一次pipeline把所有脚本加载到redis
+     */
+    public void loadAll() {
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Script script : scripts.values()) {
+                    connection.scriptingCommands().scriptLoad(script.source);
+                }
+                return null;
+            });
+            log.info("lua脚本加载完成: {}", scripts.keySet());
+        } catch (Exception e) {
+            //启动时redis不可用, 第一次调用时会通过NOSCRIPT处理重新加载
+            log.warn("lua脚本加载失败", e);
+        }
+    }
+
+    /**
+     * 执行脚本
+     *
+     * @param name 脚本名称
+     * @param keys KEYS
+     * @param args ARGV
+     * @return 脚本的返回值
+     */
+    public Long execute(String name, List<String> keys, Object... args) {
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("lua脚本未注册: " + name);
+        }
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[keys.size() + i] = String.valueOf(args[i]).getBytes(StandardCharsets.UTF_8);
+        }
+        long begin = System.nanoTime();
+        try {
+            return stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.scriptingCommands().evalSha(script.sha1, ReturnType.INTEGER, keys.size(), keysAndArgs));
+        } catch (RuntimeException e) {
+            if (!isNoScript(e)) {
+                script.errorCount.increment();
+                throw e;
+            }
+            //脚本缓存丢失, EVAL执行并重新缓存
+            script.reloadCount.increment();
+            log.warn("lua脚本不在redis缓存中, 重新加载: {}", name);
+            return stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.scriptingCommands().eval(script.source, ReturnType.INTEGER, keys.size(), keysAndArgs));
+        } finally {
+            script.latency.record((System.nanoTime() - begin) / 1000);
+        }
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 每个脚本的调用次数, 耗时(微秒)分布, 重新加载次数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Script script : scripts.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("sha1", script.sha1);
+            item.put("latencyMicros", script.latency.snapshot());
+            item.put("reloadCount", script.reloadCount.sum());
+            item.put("errorCount", script.errorCount.sum());
+            stats.put(script.name, item);
+        }
+        return stats;
+    }
+
+    private static class Script {
+        final String name;
+        final byte[] source;
+        final String sha1;
+        final Histogram latency = new Histogram(24);
+        final LongAdder reloadCount = new LongAdder();
+        final LongAdder errorCount = new LongAdder();
+
+        Script(String name, byte[] source, String sha1) {
+            this.name = name;
+            this.source = source;
+            this.sha1 = sha1;
+        }
+    }
+}
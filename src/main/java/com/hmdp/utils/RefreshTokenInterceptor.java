@@ -4,7 +4,7 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -19,8 +19,10 @@ import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
  * @ClassName: LoginInterceptor
  * @PackageName: com.hmdp.utils
  * @Description: 刷新token拦截器
+ * 异步请求(DeferredResult)在controller返回后不会在当前线程执行afterCompletion, 要在afterConcurrentHandlingStarted中清理用户,
+ * 否则这个tomcat线程处理的下一个请求会拿到上一个用户
  */
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
@@ -39,6 +41,8 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
      */
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //先清掉线程中可能残留的用户, 没有token的请求不能沿用上一个请求的用户
+        UserHolder.removeUser();
         //获取token(在请求头中)
         String token = request.getHeader("authorization");
         if (StrUtil.isBlank(token)) {
@@ -76,4 +80,12 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         UserHolder.removeUser();
     }
+
+    /**
+     * 异步请求开始之后执行(代替postHandle和afterCompletion), 当前线程马上会去处理其他请求
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
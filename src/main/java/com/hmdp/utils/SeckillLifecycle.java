@@ -0,0 +1,296 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillBuyerArchiveMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: SeckillLifecycle
+ * @PackageName: com.hmdp.utils
+ * @Description: 秒杀券的生命周期: 开售前预热, 结束后清理
+ * 每个秒杀券两个定时任务, 放在一个DelayQueue中(堆, 上万个秒杀券也只是一个线程在等最早的任务)
+ * 1. 预热: 开始前 SECKILL_PREHEAT_AHEAD 毫秒, 写入redis库存(不覆盖)和秒杀时间, 加载本地的分片数和售罄标记. 每个节点都执行
+ * 2. 清理: 结束后 SECKILL_RETIRE_DELAY 毫秒(等待订单落库), 分批把已下单用户归档到数据库, 然后删除redis中的库存、元数据和已下单集合
+ * 清理只由一个节点执行(分布式锁), 重复执行时key已经不存在, 什么都不做
+ * 启动时从数据库加载所有未清理的秒杀券, 新增秒杀券时加入
+ */
+@Slf4j
+@Component
+public class SeckillLifecycle implements ApplicationRunner {
+
+    private enum Phase {
+        PREHEAT, RETIRE
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillBuyerArchiveMapper seckillBuyerArchiveMapper;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
+    private final DelayQueue<Task> queue = new DelayQueue<>();
+    /**
+     * 优惠券id:阶段 -> 任务, 同一个任务重复加入时替换
+     */
+    private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(SECKILL_LIFECYCLE_THREADS,
+            new ThreadFactoryBuilder().setNamePrefix("seckill-lifecycle-").build());
+    private final Thread dispatcher = new Thread(this::dispatch, "seckill-lifecycle-dispatcher");
+
+    private final LongAdder preheatCount = new LongAdder();
+    private final LongAdder retireCount = new LongAdder();
+    private final LongAdder archivedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    /**
+     * 启动时按id游标分页加载还没有清理的秒杀券
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        LocalDateTime since = LocalDateTime.now().minusSeconds(SECKILL_LIFECYCLE_LOOKBACK);
+        long cursor = 0;
+        int loaded = 0;
+        while (true) {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("voucher_id", cursor)
+                    .gt("end_time", since)
+                    .orderByAsc("voucher_id")
+                    .last("limit " + SECKILL_LIFECYCLE_LOAD_BATCH)
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                schedule(voucher.getVoucherId(), voucher.getBeginTime(), voucher.getEndTime());
+            }
+            loaded += vouchers.size();
+            if (vouchers.size() < SECKILL_LIFECYCLE_LOAD_BATCH) {
+                break;
+            }
+            cursor = vouchers.get(vouchers.size() - 1).getVoucherId();
+        }
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        log.info("秒杀券生命周期任务加载完成, 秒杀券:{}", loaded);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        dispatcher.interrupt();
+        executor.shutdownNow();
+    }
+
+    /**
+     * 加入(或者替换)一个秒杀券的预热和清理任务, 预热时间已过但还没结束时立即预热
+     */
+    public void schedule(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        long now = System.currentTimeMillis();
+        long begin = toMillis(beginTime);
+        long end = toMillis(endTime);
+        if (end > now) {
+            offer(new Task(voucherId, Phase.PREHEAT, begin - SECKILL_PREHEAT_AHEAD));
+        }
+        offer(new Task(voucherId, Phase.RETIRE, end + SECKILL_RETIRE_DELAY));
+    }
+
+    private void offer(Task task) {
+        Task old = tasks.put(task.key(), task);
+        if (old != null) {
+            queue.remove(old);
+        }
+        queue.offer(task);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 取出到期的任务交给线程池执行
+     */
+    private void dispatch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Task task = queue.take();
+                if (!tasks.remove(task.key(), task)) {
+                    //已经被替换
+                    continue;
+                }
+                executor.execute(() -> execute(task));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private void execute(Task task) {
+        try {
+            if (task.phase == Phase.PREHEAT) {
+                preheat(task.voucherId);
+            } else {
+                retire(task.voucherId);
+            }
+        } catch (Exception e) {
+            failedCount.increment();
+            log.error("秒杀券{}失败, 优惠券id:{}, 稍后重试", task.phase, task.voucherId, e);
+            offer(new Task(task.voucherId, task.phase, System.currentTimeMillis() + SECKILL_LIFECYCLE_RETRY));
+        }
+    }
+
+    /**
+     * 预热: 库存只在不存在时写入(redis中的库存比数据库新), 秒杀时间每次覆盖
+     */
+    private void preheat(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return;
+        }
+        int shards = seckillStockShards.shards(voucherId);
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_STOCK_KEY + voucherId, voucher.getStock().toString());
+        }
+        seckillStockShards.saveVoucherMeta(voucherId, voucher.getBeginTime(), voucher.getEndTime());
+        //库存已经是0的秒杀券, 开售前就在本地标记售罄
+        Object stock = seckillStockShards.stats(voucherId).get("stock");
+        if (stock instanceof Long && (Long) stock <= 0) {
+            seckillSoldOut.markSoldOut(voucherId);
+        }
+        preheatCount.increment();
+        log.info("秒杀券已预热, 优惠券id:{}, 库存:{}", voucherId, stock);
+    }
+
+    /**
+     * 清理: 归档已下单用户, 删除redis中的key
+     */
+    private void retire(Long voucherId) {
+        RLock lock = redissonClient.getLock(SECKILL_RETIRE_LOCK_KEY + voucherId);
+        if (!lock.tryLock()) {
+            //其他节点正在清理
+            return;
+        }
+        try {
+            int shards = seckillStockShards.shards(voucherId);
+            List<String> keys = new ArrayList<>();
+            List<String> orderKeys = new ArrayList<>();
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+            keys.add(SECKILL_VOUCHER_KEY + voucherId);
+            keys.add(SECKILL_SHARDS_KEY + voucherId);
+            orderKeys.add(SECKILL_ORDER_KEY + voucherId);
+            for (int i = 0; i < shards && shards > 1; i++) {
+                keys.add(SeckillStockShards.stockKey(voucherId, i));
+                keys.add(SeckillStockShards.voucherKey(voucherId, i));
+                orderKeys.add(SeckillStockShards.orderKey(voucherId, i));
+            }
+            long archived = 0;
+            for (String orderKey : orderKeys) {
+                archived += archive(voucherId, orderKey);
+            }
+            //先归档, 归档成功之后才删除已下单集合
+            keys.addAll(orderKeys);
+            Long deleted = stringRedisTemplate.unlink(keys);
+            retireCount.increment();
+            log.info("秒杀券已清理, 优惠券id:{}, 归档用户:{}, 删除key:{}", voucherId, archived, deleted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 分批扫描已下单集合, 每批一条insert写入归档表
+     */
+    private long archive(Long voucherId, String orderKey) {
+        long archived = 0;
+        List<Long> userIds = new ArrayList<>(SECKILL_ARCHIVE_BATCH);
+        try (Cursor<String> scan = stringRedisTemplate.opsForSet().scan(orderKey,
+                ScanOptions.scanOptions().count(SECKILL_ARCHIVE_BATCH).build())) {
+            while (scan.hasNext()) {
+                String userId = scan.next();
+                if (StrUtil.isNotBlank(userId)) {
+                    userIds.add(Long.valueOf(userId));
+                }
+                if (!userIds.isEmpty() && (userIds.size() >= SECKILL_ARCHIVE_BATCH || !scan.hasNext())) {
+                    seckillBuyerArchiveMapper.insertIgnoreBatch(voucherId, userIds);
+                    archived += userIds.size();
+                    userIds.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("扫描已下单用户失败: " + orderKey, e);
+        }
+        archivedCount.add(archived);
+        return archived;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("scheduled", tasks.size());
+        Task next = queue.peek();
+        if (next != null) {
+            stats.put("next", next.key());
+            stats.put("nextTime", next.time);
+        }
+        stats.put("preheatCount", preheatCount.sum());
+        stats.put("retireCount", retireCount.sum());
+        stats.put("archivedCount", archivedCount.sum());
+        stats.put("failedCount", failedCount.sum());
+        return stats;
+    }
+
+    private static class Task implements Delayed {
+        final Long voucherId;
+        final Phase phase;
+        /**
+         * 执行时间, 毫秒时间戳
+         */
+        final long time;
+
+        Task(Long voucherId, Phase phase, long time) {
+            this.voucherId = voucherId;
+            this.phase = phase;
+            this.time = time;
+        }
+
+        String key() {
+            return voucherId + ":" + phase;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(time, ((Task) o).time);
+        }
+    }
+}
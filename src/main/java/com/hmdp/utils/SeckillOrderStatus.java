@@ -0,0 +1,193 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: SeckillOrderStatus
+ * @PackageName: com.hmdp.utils
+ * @Description: 秒杀订单的处理结果
+ * 结果按订单id分桶保存在hash中(每个桶 SECKILL_STATUS_BUCKET 个订单, 小hash用ziplist编码, 比每个订单一个key省内存)
+ * 值是 结果编码:用户id, 结果编码 -1 处理中, 0 成功, 其他为失败原因(SeckillResult); 用户id用来检查订单是否属于查询的用户
+ * 秒杀脚本写入"处理中", 消费者落库后写入最终结果, 并广播给所有节点, 唤醒等待结果的请求
+ */
+@Slf4j
+@Component
+public class SeckillOrderStatus {
+
+    /**
+     * 处理中
+     */
+    public static final int PENDING = -1;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 订单id -> 本节点等待结果的回调
+     */
+    private final Map<Long, List<Consumer<Integer>>> waiters = new ConcurrentHashMap<>();
+    /**
+     * 所有订单结果的监听器: (订单id, 结果编码)
+     */
+    private final List<BiConsumer<Long, Integer>> listeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    private void init() {
+        //消息格式: 订单id:结果,订单id:结果...
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            if (waiters.isEmpty() && listeners.isEmpty()) {
+                return;
+            }
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            for (String item : body.split(",")) {
+                int i = item.indexOf(':');
+                notify(Long.valueOf(item.substring(0, i)), Integer.valueOf(item.substring(i + 1)));
+            }
+        }, new ChannelTopic(SECKILL_STATUS_CHANNEL));
+    }
+
+    public static String key(long orderId) {
+        return SECKILL_STATUS_KEY + orderId / SECKILL_STATUS_BUCKET;
+    }
+
+    private static String value(int code, Long userId) {
+        return code + ":" + userId;
+    }
+
+    /**
+     * 记录订单处理中(分片库存的秒杀在java中发送订单消息, 发送之前调用)
+     */
+    public void pending(long orderId, Long userId) {
+        String key = key(orderId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            connection.hashCommands().hSet(k, String.valueOf(orderId).getBytes(StandardCharsets.UTF_8),
+                    value(PENDING, userId).getBytes(StandardCharsets.UTF_8));
+            connection.keyCommands().expire(k, SECKILL_STATUS_TTL);
+            return null;
+        });
+    }
+
+    /**
+     * 记录一批订单的最终结果, 一次pipeline写入, 一条消息广播
+     *
+     * @param orders  订单(用户id和结果一起写入)
+     * @param results 订单id -> 结果, 没有结果的订单跳过
+     */
+    public void complete(List<VoucherOrder> orders, Map<Long, SeckillResult> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            Set<String> keys = new HashSet<>();
+            for (VoucherOrder order : orders) {
+                SeckillResult result = results.get(order.getId());
+                if (result == null) {
+                    continue;
+                }
+                String key = key(order.getId());
+                int code = result.getCode();
+                connection.hashCommands().hSet(key.getBytes(StandardCharsets.UTF_8),
+                        order.getId().toString().getBytes(StandardCharsets.UTF_8),
+                        value(code, order.getUserId()).getBytes(StandardCharsets.UTF_8));
+                keys.add(key);
+                if (message.length() > 0) {
+                    message.append(',');
+                }
+                message.append(order.getId()).append(':').append(code);
+            }
+            for (String key : keys) {
+                connection.keyCommands().expire(key.getBytes(StandardCharsets.UTF_8), SECKILL_STATUS_TTL);
+            }
+            connection.publish(SECKILL_STATUS_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                    message.toString().getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单的处理结果
+     *
+     * @return 结果编码, 没有记录(订单不存在或者结果已经过期)返回null
+     */
+    public Integer get(long orderId) {
+        Object value = stringRedisTemplate.opsForHash().get(key(orderId), String.valueOf(orderId));
+        return value == null ? null : Integer.valueOf(StrUtil.subBefore(value.toString(), ":", false));
+    }
+
+    /**
+     * 查询用户自己的订单的处理结果
+     *
+     * @return 结果编码, 没有记录或者订单不属于这个用户时返回null(由调用方查数据库确认)
+     */
+    public Integer get(long orderId, Long userId) {
+        Object value = stringRedisTemplate.opsForHash().get(key(orderId), String.valueOf(orderId));
+        if (value == null || !userId.toString().equals(StrUtil.subAfter(value.toString(), ":", false))) {
+            return null;
+        }
+        return Integer.valueOf(StrUtil.subBefore(value.toString(), ":", false));
+    }
+
+    /**
+     * 等待订单的最终结果, 结果写入后回调. 调用方注册之后要再查询一次, 避免注册之前结果已经写入
+     *
+     * @return 取消等待
+     */
+    public Runnable await(long orderId, Consumer<Integer> callback) {
+        waiters.computeIfAbsent(orderId, k -> new CopyOnWriteArrayList<>()).add(callback);
+        return () -> waiters.computeIfPresent(orderId, (k, list) -> {
+            list.remove(callback);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    /**
+     * 监听所有节点写入的订单结果
+     */
+    public void onComplete(BiConsumer<Long, Integer> listener) {
+        listeners.add(listener);
+    }
+
+    private void notify(Long orderId, Integer code) {
+        for (BiConsumer<Long, Integer> listener : listeners) {
+            listener.accept(orderId, code);
+        }
+        List<Consumer<Integer>> list = waiters.remove(orderId);
+        if (list == null) {
+            return;
+        }
+        for (Consumer<Integer> callback : list) {
+            try {
+                callback.accept(code);
+            } catch (Exception e) {
+                log.warn("订单结果回调失败, 订单id:{}", orderId, e);
+            }
+        }
+    }
+
+    public int waiting() {
+        return waiters.size();
+    }
+}
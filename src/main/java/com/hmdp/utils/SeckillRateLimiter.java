@@ -0,0 +1,244 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: SeckillRateLimiter
+ * @PackageName: com.hmdp.utils
+ * @Description: 秒杀接口的分层限流
+ * 1. 本节点的令牌桶, 没有IO, 超出本节点处理能力的请求直接拒绝, 不会打到redis
+ * 2. redis上的全局滑动窗口, 按优惠券和用户限流(SeckillLimiter.lua)
+ * 配置保存在redis的hash中, 修改后广播, 所有节点重新加载; redis限流调用失败时放行
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    private volatile Config config = Config.defaults();
+    private volatile TokenBucket bucket = new TokenBucket(config.localRate, config.localBurst);
+
+    private final LongAdder acceptedCount = new LongAdder();
+    private final LongAdder localRejectedCount = new LongAdder();
+    private final LongAdder voucherRejectedCount = new LongAdder();
+    private final LongAdder userRejectedCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> reload(),
+                new ChannelTopic(SECKILL_LIMIT_CHANNEL));
+        reload();
+    }
+
+    /**
+     * 是否放行
+     *
+     * @return 放行返回null, 否则返回拒绝原因
+     */
+    public String tryAcquire(Long voucherId, Long userId) {
+        if (!bucket.tryAcquire()) {
+            localRejectedCount.increment();
+            return "请求太多, 请稍后再试";
+        }
+        Config c = config;
+        if (c.voucherLimit <= 0 && c.userLimit <= 0) {
+            acceptedCount.increment();
+            return null;
+        }
+        Long result;
+        try {
+            //脚本按redis服务器时间在key后面拼接窗口编号, 调用方算不出完整的key
+            //两个key带同一个hash tag {voucherId}, 拼接出来的窗口key也在同一个slot, 集群模式下可以执行
+            result = redisScriptRegistry.execute(
+                    RedisScriptRegistry.SECKILL_LIMITER,
+                    Arrays.asList(SECKILL_LIMIT_KEY + "{" + voucherId + "}:v", SECKILL_LIMIT_KEY + "{" + voucherId + "}:u:" + userId),
+                    c.windowMillis, c.voucherLimit, c.userLimit
+            );
+        } catch (Exception e) {
+            //限流不能影响下单, 放行
+            errorCount.increment();
+            log.warn("秒杀限流脚本执行失败", e);
+            result = 0L;
+        }
+        if (result != null && result == 1) {
+            voucherRejectedCount.increment();
+            return "请求太多, 请稍后再试";
+        }
+        if (result != null && result == 2) {
+            userRejectedCount.increment();
+            return "操作太频繁, 请稍后再试";
+        }
+        acceptedCount.increment();
+        return null;
+    }
+
+    /**
+     * 修改配置, 保存到redis并通知所有节点重新加载. 参数为null的项保持不变
+     *
+     * @param localRate    每个节点每秒的令牌数
+     * @param localBurst   令牌桶的容量
+     * @param voucherLimit 每个窗口内每个优惠券的请求上限(全局), 小于等于0不限制
+     * @param userLimit    每个窗口内每个用户对每个优惠券的请求上限, 小于等于0不限制
+     * @param windowMillis 窗口大小(毫秒)
+     */
+    public void update(Integer localRate, Integer localBurst, Integer voucherLimit, Integer userLimit, Long windowMillis) {
+        Map<String, String> values = new HashMap<>(8);
+        if (localRate != null) {
+            values.put("localRate", localRate.toString());
+        }
+        if (localBurst != null) {
+            values.put("localBurst", localBurst.toString());
+        }
+        if (voucherLimit != null) {
+            values.put("voucherLimit", voucherLimit.toString());
+        }
+        if (userLimit != null) {
+            values.put("userLimit", userLimit.toString());
+        }
+        if (windowMillis != null) {
+            values.put("windowMillis", windowMillis.toString());
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForHash().putAll(SECKILL_LIMIT_CONFIG_KEY, values);
+        stringRedisTemplate.convertAndSend(SECKILL_LIMIT_CHANNEL, "reload");
+        reload();
+    }
+
+    /**
+     * 从redis加载配置, 没有配置的项使用默认值
+     */
+    public void reload() {
+        Map<Object, Object> values;
+        try {
+            values = stringRedisTemplate.opsForHash().entries(SECKILL_LIMIT_CONFIG_KEY);
+        } catch (Exception e) {
+            log.warn("加载秒杀限流配置失败, 继续使用当前配置", e);
+            return;
+        }
+        Config c = Config.defaults();
+        c.localRate = intValue(values.get("localRate"), c.localRate);
+        c.localBurst = intValue(values.get("localBurst"), c.localBurst);
+        c.voucherLimit = intValue(values.get("voucherLimit"), c.voucherLimit);
+        c.userLimit = intValue(values.get("userLimit"), c.userLimit);
+        Object window = values.get("windowMillis");
+        if (window != null && StrUtil.isNotBlank(window.toString())) {
+            c.windowMillis = Math.max(Long.parseLong(window.toString()), 1L);
+        }
+        if (c.localRate != config.localRate || c.localBurst != config.localBurst) {
+            bucket = new TokenBucket(c.localRate, c.localBurst);
+        }
+        config = c;
+        log.info("秒杀限流配置: {}", c);
+    }
+
+    private static int intValue(Object value, int defaultValue) {
+        if (value == null || StrUtil.isBlank(value.toString())) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.toString());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Config c = config;
+        stats.put("localRate", c.localRate);
+        stats.put("localBurst", c.localBurst);
+        stats.put("voucherLimit", c.voucherLimit);
+        stats.put("userLimit", c.userLimit);
+        stats.put("windowMillis", c.windowMillis);
+        stats.put("acceptedCount", acceptedCount.sum());
+        stats.put("localRejectedCount", localRejectedCount.sum());
+        stats.put("voucherRejectedCount", voucherRejectedCount.sum());
+        stats.put("userRejectedCount", userRejectedCount.sum());
+        stats.put("errorCount", errorCount.sum());
+        return stats;
+    }
+
+    private static class Config {
+        int localRate;
+        int localBurst;
+        int voucherLimit;
+        int userLimit;
+        long windowMillis;
+
+        static Config defaults() {
+            Config c = new Config();
+            c.localRate = SECKILL_LIMIT_LOCAL_RATE;
+            c.localBurst = SECKILL_LIMIT_LOCAL_BURST;
+            c.voucherLimit = SECKILL_LIMIT_VOUCHER;
+            c.userLimit = SECKILL_LIMIT_USER;
+            c.windowMillis = SECKILL_LIMIT_WINDOW;
+            return c;
+        }
+
+        @Override
+        public String toString() {
+            return "localRate=" + localRate + ", localBurst=" + localBurst + ", voucherLimit=" + voucherLimit
+                    + ", userLimit=" + userLimit + ", windowMillis=" + windowMillis;
+        }
+    }
+
+    /**
+     * 无锁的令牌桶
+     * 只保存"下一个令牌的理论到达时间"(GCRA), 每次获取令牌时往后推一个间隔, 超过 容量*间隔 说明桶已经空了
+     */
+    static class TokenBucket {
+
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+        /**
+         * @param rate  每秒的令牌数, 小于等于0表示不限制
+         * @param burst 桶的容量
+         */
+        TokenBucket(int rate, int burst) {
+            this.intervalNanos = rate <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+            this.toleranceNanos = intervalNanos * Math.max(burst, 1);
+        }
+
+        boolean tryAcquire() {
+            if (intervalNanos == 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            while (true) {
+                long tat = theoreticalArrival.get();
+                long next = Math.max(tat - now, 0) + now + intervalNanos;
+                if (next - now > toleranceNanos) {
+                    return false;
+                }
+                if (theoreticalArrival.compareAndSet(tat, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+/**
+ * @Author: lemme
+ * @ClassName: SeckillResult
+ * @PackageName: com.hmdp.utils
+ * @Description: 秒杀脚本的返回值
+ */
+public enum SeckillResult {
+    OK(0, "下单成功"),
+    NO_STOCK(1, "库存不足"),
+    DUPLICATE(2, "不能重复下单"),
+    NOT_STARTED(3, "秒杀尚未开始"),
+    ENDED(4, "秒杀已经结束"),
+    NOT_FOUND(5, "秒杀券不存在或未开放");
+
+    private final int code;
+    private final String message;
+
+    SeckillResult(int code, String message) {
+        this.code = code;
+        this.message = message;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public static SeckillResult of(long code) {
+        for (SeckillResult result : values()) {
+            if (result.code == code) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("未知的秒杀结果: " + code);
+    }
+}
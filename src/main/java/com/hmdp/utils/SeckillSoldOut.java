@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: SeckillSoldOut
+ * @PackageName: com.hmdp.utils
+ * @Description: 本地的售罄标记
+ * 秒杀脚本返回库存不足后标记售罄, 并广播给所有节点, 之后的请求在本地直接拒绝, 不再执行lua脚本
+ * 补库存时清除标记. 标记有过期时间, 丢失了清除消息最多误拒 SECKILL_SOLD_OUT_TTL, 过期后由下一次脚本调用重新标记
+ */
+@Slf4j
+@Component
+public class SeckillSoldOut {
+
+    /**
+     * 广播消息: 标记售罄
+     */
+    private static final String MARK = "+";
+    /**
+     * 广播消息: 清除标记
+     */
+    private static final String CLEAR = "-";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 优惠券id -> 标记的过期时间
+     */
+    private final ConcurrentHashMap<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            Long voucherId = Long.valueOf(body.substring(1));
+            if (body.startsWith(MARK)) {
+                soldOut.put(voucherId, System.currentTimeMillis() + SECKILL_SOLD_OUT_TTL);
+            } else {
+                soldOut.remove(voucherId);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 是否已经售罄, 售罄时计入本地拒绝的次数
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        rejectedCount.increment();
+        return true;
+    }
+
+    /**
+     * 标记售罄, 本节点第一次标记时广播
+     */
+    public void markSoldOut(Long voucherId) {
+        Long old = soldOut.put(voucherId, System.currentTimeMillis() + SECKILL_SOLD_OUT_TTL);
+        if (old == null) {
+            log.info("优惠券已售罄: {}", voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, MARK + voucherId);
+        }
+    }
+
+    /**
+     * 清除售罄标记(补库存), 通知所有节点
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, CLEAR + voucherId);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("soldOut", soldOut.keySet());
+        stats.put("rejectedCount", rejectedCount.sum());
+        return stats;
+    }
+}
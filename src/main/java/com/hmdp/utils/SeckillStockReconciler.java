@@ -0,0 +1,438 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: SeckillStockReconciler
+ * @PackageName: com.hmdp.utils
+ * @Description: 秒杀库存对账
+ * 库存在redis(lua扣减)和数据库(订单落库时扣减)各有一份, 订单丢失时两边会一直不一致
+ * 每次按优惠券id游标取一批进行中的秒杀券, 一次pipeline读取redis库存和已下单用户数, 一条group by统计数据库订单数
+ * 1. 落库延迟 lag = redis已下单用户数 - 数据库订单数, 秒杀进行中时大于0是正常的
+ * 2. 总量偏差 drift = (redis库存 + redis已下单用户数) - (数据库库存 + 数据库订单数), 正常情况下为0
+ * 订单队列空闲(没有未投递和未确认的消息)并且连续两次对账结果相同时才认为不一致, 开启修复时:
+ * 1. 已下单但没有订单的用户(订单失败或者丢失), 从已下单集合中移除, 库存加回
+ *    分片库存先扣减再发消息, 队列空闲也可能有还没发出的订单, 所以只移除上一次修复时已经没有订单,
+ *    并且确认队列空闲之后再查一次数据库仍然没有订单的用户
+ * 2. 总量偏差用 INCRBY 修正redis库存(不覆盖, 不影响并发的扣减)
+ * 多个节点只有一个执行, 不加秒杀路径上的任何锁
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    /**
+     * 是否自动修复, 默认只统计
+     */
+    private volatile boolean repair = SECKILL_RECONCILE_REPAIR;
+    /**
+     * 下一批从哪个优惠券id之后开始
+     */
+    private long cursor;
+
+    /**
+     * 优惠券id -> 最近一次对账结果
+     */
+    private final Map<Long, Check> lastChecks = new ConcurrentHashMap<>();
+    /**
+     * 优惠券id -> 上一次修复时没有订单的用户, 下一次修复时仍然没有订单才移除
+     */
+    private final Map<Long, Set<String>> suspects = new ConcurrentHashMap<>();
+    private final LongAdder checkedCount = new LongAdder();
+    private final LongAdder driftCount = new LongAdder();
+    private final LongAdder repairedCount = new LongAdder();
+    private volatile long lastRunTime;
+
+    @Scheduled(fixedDelay = SECKILL_RECONCILE_INTERVAL, initialDelay = SECKILL_RECONCILE_INTERVAL)
+    public void scheduled() {
+        String token = tryLock();
+        if (token == null) {
+            //其他节点正在对账
+            return;
+        }
+        try {
+            reconcile();
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        } finally {
+            unLock(token);
+        }
+    }
+
+    /**
+     * 对账一批秒杀券
+     */
+    public void reconcile() {
+        lastRunTime = System.currentTimeMillis();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("voucher_id", cursor)
+                .gt("end_time", LocalDateTime.now().minusSeconds(SECKILL_RECONCILE_GRACE))
+                .orderByAsc("voucher_id")
+                .last("limit " + SECKILL_RECONCILE_BATCH)
+                .list();
+        //最后一批, 下一次从头开始
+        cursor = vouchers.size() < SECKILL_RECONCILE_BATCH ? 0 : vouchers.get(vouchers.size() - 1).getVoucherId();
+        if (vouchers.isEmpty()) {
+            return;
+        }
+        boolean idle = isOrderQueueIdle();
+        Map<Long, long[]> redisCounts = redisCounts(vouchers);
+        Map<Long, Long> orderCounts = orderCounts(vouchers);
+        for (SeckillVoucher voucher : vouchers) {
+            long[] redis = redisCounts.get(voucher.getVoucherId());
+            if (redis == null) {
+                //redis中没有这个秒杀券(没有预热或者已经清理)
+                lastChecks.remove(voucher.getVoucherId());
+                suspects.remove(voucher.getVoucherId());
+                continue;
+            }
+            Check check = new Check(redis[0], redis[1], voucher.getStock(),
+                    orderCounts.getOrDefault(voucher.getVoucherId(), 0L), idle);
+            Check last = lastChecks.put(voucher.getVoucherId(), check);
+            checkedCount.increment();
+            //队列空闲并且和上一次结果相同, 不是正在处理中的订单造成的
+            boolean stable = idle && last != null && last.idle && last.sameAs(check);
+            if (!stable || (check.lag() == 0 && check.drift() == 0)) {
+                continue;
+            }
+            driftCount.increment();
+            log.warn("秒杀库存不一致, 优惠券id:{}, {}", voucher.getVoucherId(), check);
+            if (repair) {
+                repair(voucher.getVoucherId(), check);
+            }
+        }
+    }
+
+    /**
+     * 一次pipeline读取每个秒杀券的库存和已下单用户数(分片时为所有分片之和)
+     *
+     * @return 优惠券id -> [库存, 已下单用户数], redis中没有库存key的不返回
+     */
+    private Map<Long, long[]> redisCounts(List<SeckillVoucher> vouchers) {
+        List<Long> ids = new ArrayList<>(vouchers.size());
+        List<Integer> shardCounts = new ArrayList<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            ids.add(voucher.getVoucherId());
+            shardCounts.add(seckillStockShards.shards(voucher.getVoucherId()));
+        }
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < ids.size(); i++) {
+                for (String key : stockKeys(ids.get(i), shardCounts.get(i))) {
+                    connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8));
+                }
+                for (String key : orderKeys(ids.get(i), shardCounts.get(i))) {
+                    connection.setCommands().sCard(key.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+        Map<Long, long[]> counts = new HashMap<>(ids.size() * 2);
+        int index = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            int shards = shardCounts.get(i);
+            long stock = 0;
+            boolean exists = false;
+            for (int s = 0; s < shards; s++) {
+                Object value = results.get(index++);
+                if (value != null && StrUtil.isNotBlank(value.toString())) {
+                    exists = true;
+                    stock += Long.parseLong(value.toString());
+                }
+            }
+            long buyers = 0;
+            for (int s = 0; s < shards; s++) {
+                Object value = results.get(index++);
+                buyers += value == null ? 0 : ((Number) value).longValue();
+            }
+            if (exists) {
+                counts.put(ids.get(i), new long[]{stock, buyers});
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * 一条group by统计每个秒杀券的订单数
+     */
+    private Map<Long, Long> orderCounts(List<SeckillVoucher> vouchers) {
+        List<Long> ids = new ArrayList<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            ids.add(voucher.getVoucherId());
+        }
+        List<Map<String, Object>> rows = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "count(*) AS cnt")
+                .in("voucher_id", ids)
+                .groupBy("voucher_id"));
+        Map<Long, Long> counts = new HashMap<>(ids.size() * 2);
+        for (Map<String, Object> row : rows) {
+            counts.put(((Number) row.get("voucher_id")).longValue(), ((Number) row.get("cnt")).longValue());
+        }
+        return counts;
+    }
+
+    /**
+     * 订单队列中没有未投递和未确认的消息
+     */
+    private boolean isOrderQueueIdle() {
+        try {
+            PendingMessagesSummary pending = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP);
+            if (pending != null && pending.getTotalPendingMessages() > 0) {
+                return false;
+            }
+            StreamInfo.XInfoStream stream = stringRedisTemplate.opsForStream().info(SECKILL_STREAM_KEY);
+            for (StreamInfo.XInfoGroup group : stringRedisTemplate.opsForStream().groups(SECKILL_STREAM_KEY)) {
+                if (SECKILL_STREAM_GROUP.equals(group.groupName())) {
+                    return Objects.equals(group.lastDeliveredId(), stream.lastGeneratedId());
+                }
+            }
+            return false;
+        } catch (Exception e) {
+            log.warn("查询订单队列状态失败", e);
+            return false;
+        }
+    }
+
+    private void repair(Long voucherId, Check check) {
+        int shards = seckillStockShards.shards(voucherId);
+        long released = 0;
+        if (check.lag() > 0) {
+            released = releaseLostBuyers(voucherId, shards);
+        }
+        //移除的用户已经把库存加回去了, 剩下的偏差直接修正
+        long drift = check.drift();
+        if (drift != 0) {
+            stringRedisTemplate.opsForValue().increment(stockKeys(voucherId, shards).get(0), -drift);
+        }
+        repairedCount.increment();
+        lastChecks.remove(voucherId);
+        log.warn("秒杀库存已修复, 优惠券id:{}, 释放的用户:{}, 修正的库存:{}", voucherId, released, -drift);
+    }
+
+    /**
+     * 分批扫描已下单集合, 找出没有订单的用户, 从集合中移除并把库存加回对应的分片
+     * 第一次发现的用户只记下来, 下一次修复时仍然没有订单才移除
+     */
+    private long releaseLostBuyers(Long voucherId, int shards) {
+        Set<String> previous = suspects.remove(voucherId);
+        Set<String> current = new HashSet<>();
+        long released = 0;
+        List<String> stockKeys = stockKeys(voucherId, shards);
+        List<String> orderKeys = orderKeys(voucherId, shards);
+        for (int s = 0; s < orderKeys.size(); s++) {
+            List<String> users = new ArrayList<>(SECKILL_RECONCILE_SCAN_BATCH);
+            try (Cursor<String> scan = stringRedisTemplate.opsForSet().scan(orderKeys.get(s),
+                    ScanOptions.scanOptions().count(SECKILL_RECONCILE_SCAN_BATCH).build())) {
+                while (scan.hasNext()) {
+                    users.add(scan.next());
+                    if (users.size() >= SECKILL_RECONCILE_SCAN_BATCH || !scan.hasNext()) {
+                        released += releaseLostBuyers(voucherId, users, orderKeys.get(s), stockKeys.get(s),
+                                previous, current);
+                        users.clear();
+                    }
+                }
+            } catch (Exception e) {
+                log.error("扫描已下单用户失败, 优惠券id:{}", voucherId, e);
+            }
+        }
+        if (!current.isEmpty()) {
+            suspects.put(voucherId, current);
+        }
+        return released;
+    }
+
+    /**
+     * @param previous 上一次修复时没有订单的用户, 可能为null
+     * @param current  这一次没有订单但还不能移除的用户
+     */
+    private long releaseLostBuyers(Long voucherId, List<String> users, String orderKey, String stockKey,
+                                   Set<String> previous, Set<String> current) {
+        List<String> lost = withoutOrder(voucherId, users);
+        //期间有新的订单进入队列, 这些用户可能是刚下单的, 下次再处理
+        if (lost.isEmpty() || !isOrderQueueIdle()) {
+            return 0;
+        }
+        //第一次查询之后, 确认队列空闲之前, 订单可能刚刚落库, 再查一次
+        lost = withoutOrder(voucherId, lost);
+        List<String> confirmed = new ArrayList<>(lost.size());
+        for (String user : lost) {
+            if (previous != null && previous.contains(user)) {
+                confirmed.add(user);
+            } else {
+                current.add(user);
+            }
+        }
+        if (confirmed.isEmpty()) {
+            return 0;
+        }
+        Long removed = stringRedisTemplate.opsForSet().remove(orderKey, confirmed.toArray());
+        if (removed != null && removed > 0) {
+            stringRedisTemplate.opsForValue().increment(stockKey, removed);
+            return removed;
+        }
+        return 0;
+    }
+
+    /**
+     * 数据库中没有这个秒杀券订单的用户
+     */
+    private List<String> withoutOrder(Long voucherId, List<String> users) {
+        if (users.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> bought = new HashSet<>();
+        for (Object userId : voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>()
+                .select("user_id").eq("voucher_id", voucherId).in("user_id", users))) {
+            bought.add(userId.toString());
+        }
+        List<String> lost = new ArrayList<>();
+        for (String user : users) {
+            if (!bought.contains(user)) {
+                lost.add(user);
+            }
+        }
+        return lost;
+    }
+
+    private static List<String> stockKeys(Long voucherId, int shards) {
+        if (shards <= 1) {
+            return Collections.singletonList(SECKILL_STOCK_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillStockShards.stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    private static List<String> orderKeys(Long voucherId, int shards) {
+        if (shards <= 1) {
+            return Collections.singletonList(SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillStockShards.orderKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    private String tryLock() {
+        String token = UUID.fastUUID().toString(true);
+        Boolean isHas = stringRedisTemplate.opsForValue()
+                .setIfAbsent(SECKILL_RECONCILE_LOCK_KEY, token, SECKILL_RECONCILE_INTERVAL, TimeUnit.MILLISECONDS);
+        return BooleanUtil.isTrue(isHas) ? token : null;
+    }
+
+    private void unLock(String token) {
+        redisScriptRegistry.execute(RedisScriptRegistry.UNLOCK, Collections.singletonList(SECKILL_RECONCILE_LOCK_KEY), token);
+    }
+
+    public void setRepair(boolean repair) {
+        this.repair = repair;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("repair", repair);
+        stats.put("lastRunTime", lastRunTime);
+        stats.put("checkedCount", checkedCount.sum());
+        stats.put("driftCount", driftCount.sum());
+        stats.put("repairedCount", repairedCount.sum());
+        long suspectCount = 0;
+        for (Set<String> users : suspects.values()) {
+            suspectCount += users.size();
+        }
+        stats.put("suspectCount", suspectCount);
+        long totalLag = 0;
+        Map<Long, String> drifted = new TreeMap<>();
+        for (Map.Entry<Long, Check> entry : lastChecks.entrySet()) {
+            Check check = entry.getValue();
+            totalLag += check.lag();
+            if (check.drift() != 0 || (check.idle && check.lag() != 0)) {
+                drifted.put(entry.getKey(), check.toString());
+            }
+        }
+        stats.put("totalLag", totalLag);
+        stats.put("drifted", drifted);
+        return stats;
+    }
+
+    /**
+     * 一次对账的结果
+     */
+    private static class Check {
+        final long redisStock;
+        final long redisBuyers;
+        final long dbStock;
+        final long dbOrders;
+        /**
+         * 读取时订单队列是否空闲
+         */
+        final boolean idle;
+
+        Check(long redisStock, long redisBuyers, long dbStock, long dbOrders, boolean idle) {
+            this.redisStock = redisStock;
+            this.redisBuyers = redisBuyers;
+            this.dbStock = dbStock;
+            this.dbOrders = dbOrders;
+            this.idle = idle;
+        }
+
+        long lag() {
+            return redisBuyers - dbOrders;
+        }
+
+        long drift() {
+            return (redisStock + redisBuyers) - (dbStock + dbOrders);
+        }
+
+        boolean sameAs(Check other) {
+            return redisStock == other.redisStock && redisBuyers == other.redisBuyers
+                    && dbStock == other.dbStock && dbOrders == other.dbOrders;
+        }
+
+        @Override
+        public String toString() {
+            return "redisStock=" + redisStock + ", redisBuyers=" + redisBuyers + ", dbStock=" + dbStock
+                    + ", dbOrders=" + dbOrders + ", lag=" + lag() + ", drift=" + drift();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: SeckillStockShards
+ * @PackageName: com.hmdp.utils
+ * @Description: 超热门秒杀券的分片库存
+ * 一个优惠券的库存拆成N份, 每份有自己的库存key和订单key, key中带hash tag {voucherId:i}, 集群模式下分布在不同的slot上
+ * 元数据(秒杀时间)每个分片复制一份, 放在分片的slot中
+ * 每个用户按id的hash固定属于一个分片(home shard), 一人一单只在这个分片的订单set中检查
+ * home shard没有库存时, 用户先在home shard上占位, 再依次去其他分片扣库存, 都没有库存时释放占位
+ * 每次秒杀脚本调用只访问一个slot的key, 只有开售前的拆分脚本访问全部分片
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+
+    /**
+     * home shard没有库存
+     */
+    private static final int HOME_EMPTY = 9;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    /**
+     * 优惠券id -> 分片数, 短时间缓存, 避免每个请求多查一次redis
+     */
+    private final TimedCache<Long, Integer> shardCounts = CacheUtil.newTimedCache(SECKILL_SHARD_CACHE_TTL);
+
+    public static String voucherKey(Long voucherId, int shard) {
+        return SECKILL_VOUCHER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 优惠券的分片数, 没有分片时返回1
+     */
+    public int shards(Long voucherId) {
+        Integer count = shardCounts.get(voucherId, false);
+        return count == null ? currentShards(voucherId) : count;
+    }
+
+    /**
+     * 直接从redis读取分片数并刷新本地缓存, 拆分和补库存这类低频操作使用, 不受缓存过期时间的影响
+     */
+    public int currentShards(Long voucherId) {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        int count = StrUtil.isBlank(value) ? 1 : Integer.parseInt(value);
+        shardCounts.put(voucherId, count);
+        return count;
+    }
+
+    /**
+     * 用户所属的分片
+     */
+    public static int homeShard(Long userId, int shards) {
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), shards);
+    }
+
+    /**
+     * 秒杀券的元数据(开始和结束时间, 毫秒时间戳), 秒杀脚本用来判断秒杀时间
+     */
+    public static Map<String, String> voucherMeta(LocalDateTime beginTime, LocalDateTime endTime) {
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("begin", String.valueOf(beginTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        meta.put("end", String.valueOf(endTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        return meta;
+    }
+
+    /**
+     * 写入秒杀券的元数据, 分片时每个分片也写一份
+     */
+    public void saveVoucherMeta(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        Map<String, String> meta = voucherMeta(beginTime, endTime);
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucherId, meta);
+        int shards = shards(voucherId);
+        for (int i = 0; i < shards && shards > 1; i++) {
+            stringRedisTemplate.opsForHash().putAll(voucherKey(voucherId, i), meta);
+        }
+    }
+
+    /**
+     * 分片模式下的秒杀资格判断
+     */
+    public SeckillResult seckill(Long voucherId, Long userId, int shards) {
+        int home = homeShard(userId, shards);
+        Long result = redisScriptRegistry.execute(RedisScriptRegistry.SECKILL_SHARD,
+                Arrays.asList(voucherKey(voucherId, home), stockKey(voucherId, home), orderKey(voucherId, home)),
+                userId);
+        int r = result.intValue();
+        if (r != HOME_EMPTY) {
+            return SeckillResult.of(r);
+        }
+        //home shard没有库存, 依次去其他分片扣
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long taken = redisScriptRegistry.execute(RedisScriptRegistry.SECKILL_SHARD_TAKE,
+                    Collections.singletonList(stockKey(voucherId, shard)));
+            if (taken.intValue() == SeckillResult.OK.getCode()) {
+                return SeckillResult.OK;
+            }
+        }
+        //所有分片都没有库存, 释放占位
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+        return SeckillResult.NO_STOCK;
+    }
+
+    /**
+     * 归还一次已经成功的扣减: 库存加回home shard, 用户移出home shard的订单set
+     * 扣减成功之后订单消息没有发出去时调用, 库存扣在哪个分片不重要, 总数不变即可
+     */
+    public void release(Long voucherId, Long userId, int shards) {
+        int home = homeShard(userId, shards);
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, home));
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+    }
+
+    /**
+     * 把一个优惠券的库存拆成多个分片, 需要在开售之前执行
+     * 已经分片时按新的分片数重新拆分, 库存取所有分片的剩余库存之和, 已下单用户取所有分片的订单set
+     * 库存平均分配, 已经下单的用户放到各自新的home shard中, 原来的不分片key和多出来的分片key删除
+     * 重写在一个lua脚本中完成, 脚本执行前用户和分片数有变化时失败, 需要重试
+     *
+     * @param voucherId 优惠券id
+     * @param shards    分片数
+     * @return 拆分后的总库存
+     */
+    public long split(Long voucherId, int shards) {
+        int oldShards = currentShards(voucherId);
+        List<String> keys = new ArrayList<>(4 + (oldShards + shards) * 3);
+        keys.add(SECKILL_SHARDS_KEY + voucherId);
+        keys.add(SECKILL_STOCK_KEY + voucherId);
+        keys.add(SECKILL_ORDER_KEY + voucherId);
+        keys.add(SECKILL_VOUCHER_KEY + voucherId);
+        List<String> orderKeys = new ArrayList<>(oldShards);
+        if (oldShards <= 1) {
+            orderKeys.add(SECKILL_ORDER_KEY + voucherId);
+        }
+        for (int i = 0; i < oldShards && oldShards > 1; i++) {
+            keys.add(voucherKey(voucherId, i));
+            keys.add(stockKey(voucherId, i));
+            keys.add(orderKey(voucherId, i));
+            orderKeys.add(orderKey(voucherId, i));
+        }
+        for (int i = 0; i < shards; i++) {
+            keys.add(voucherKey(voucherId, i));
+            keys.add(stockKey(voucherId, i));
+            keys.add(orderKey(voucherId, i));
+        }
+        //home shard的计算在java中, 脚本只负责按给定的下标写入
+        List<Object> args = new ArrayList<>();
+        args.add(oldShards);
+        args.add(shards);
+        args.add(0);
+        int buyers = 0;
+        for (String orderKey : orderKeys) {
+            Set<String> users = stringRedisTemplate.opsForSet().members(orderKey);
+            if (users == null) {
+                continue;
+            }
+            for (String userId : users) {
+                args.add(userId);
+                args.add(homeShard(Long.valueOf(userId), shards));
+            }
+            buyers += users.size();
+        }
+        args.set(2, buyers);
+        Long total = redisScriptRegistry.execute(RedisScriptRegistry.SECKILL_SHARD_SPLIT, keys, args.toArray());
+        if (total == null || total < 0) {
+            throw new IllegalStateException("拆分期间分片数或已下单用户发生变化, 优惠券id:" + voucherId);
+        }
+        shardCounts.put(voucherId, shards);
+        log.info("优惠券库存已分片, 优惠券id:{}, 分片数:{} -> {}, 库存:{}, 已下单用户:{}", voucherId, oldShards, shards, total, buyers);
+        return total;
+    }
+
+    /**
+     * 补库存, 平均加到每个分片上
+     */
+    public void addStock(Long voucherId, int count, int shards) {
+        for (int i = 0; i < shards; i++) {
+            long add = count / shards + (i < count % shards ? 1 : 0);
+            if (add > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), add);
+            }
+        }
+    }
+
+    /**
+     * 所有分片的剩余库存
+     */
+    public Map<String, Object> stats(Long voucherId) {
+        int shards = shards(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        if (shards <= 1) {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+        }
+        for (int i = 0; i < shards && shards > 1; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        List<Long> stocks = new ArrayList<>(shards);
+        long total = 0;
+        for (String value : stringRedisTemplate.opsForValue().multiGet(keys)) {
+            long stock = StrUtil.isBlank(value) ? 0 : Long.parseLong(value);
+            stocks.add(stock);
+            total += stock;
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("shards", shards);
+        stats.put("stock", total);
+        stats.put("shardStocks", stocks);
+        return stats;
+    }
+}
@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @Author: lemme
+ * @ClassName: TtlJitter
+ * @PackageName: com.hmdp.utils
+ * @Description: 过期时间随机抖动, 在TTL的基础上再加一段随机时间(只加不减),
+ * 避免同一批写入的key在同一秒过期(缓存雪崩)
+ */
+public class TtlJitter {
+
+    public enum Distribution {
+        /**
+         * 不抖动
+         */
+        NONE,
+        /**
+         * 均匀分布, 增加 [0, ratio * ttl)
+         */
+        UNIFORM,
+        /**
+         * 半正态分布, 3倍标准差为 ratio * ttl, 大部分key靠近原来的TTL, 超出部分截断
+         */
+        GAUSSIAN
+    }
+
+    private final Distribution distribution;
+    private final double ratio;
+
+    public TtlJitter(Distribution distribution, double ratio) {
+        this.distribution = distribution;
+        this.ratio = ratio;
+    }
+
+    /**
+     * 计算抖动之后的过期时间
+     *
+     * @param ttl 原来的过期时间, 单位不限
+     * @return 抖动之后的过期时间, 单位和传入的一样
+     */
+    public long apply(long ttl) {
+        double max = ttl * ratio;
+        switch (distribution) {
+            case UNIFORM:
+                return ttl + (long) (max * ThreadLocalRandom.current().nextDouble());
+            case GAUSSIAN:
+                double gaussian = Math.abs(ThreadLocalRandom.current().nextGaussian()) / 3;
+                return ttl + (long) (max * Math.min(gaussian, 1));
+            default:
+                return ttl;
+        }
+    }
+
+    /**
+     * 把一批key的过期时间均匀分散到 [ttl, ttl + window) 中
+     * 每个key落在自己的小区间里, 小区间内再随机
+     *
+     * @param ttl    基础过期时间
+     * @param window 分散的时间窗口, 和ttl的单位一样
+     * @param index  当前key在这批中的序号
+     * @param total  这批key的总数
+     */
+    public static long spread(long ttl, long window, int index, int total) {
+        return ttl + (long) (window * (index + ThreadLocalRandom.current().nextDouble()) / total);
+    }
+
+    public Distribution getDistribution() {
+        return distribution;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+}
@@ -1,20 +1,52 @@
----基于Lua脚本，判断秒杀库存、一人一单，决定用户是否抢购成功
+---基于Lua脚本，判断秒杀时间、库存、一人一单，决定用户是否抢购成功, 成功后把订单发送到消息队列
+---返回值: 0 成功, 1 库存不足, 2 重复下单, 3 未开始, 4 已结束, 5 没有预热(元数据或库存不存在)
+
+--使用redis服务器的时间, 需要按命令复制(redis 5之后是默认行为)
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
 
 ---参数列表
 --优惠券id
 local voucherId = ARGV[1]
 --用户id
 local userId = ARGV[2]
+--订单id
+local orderId = ARGV[3]
+--订单结果key(订单id分桶, 由调用方计算, lua的数字是double, 不能精确表示订单id), 结果的过期时间(秒)
+local statusKey = ARGV[4]
+local statusTtl = ARGV[5]
 
 --数据key
+--元数据key(hash, begin/end 为毫秒时间戳)
+local voucherKey = 'seckill:voucher:' .. voucherId
 --库存key
 local stockKey = 'seckill:stock:' .. voucherId
 --订单key
 local orderKey = 'seckill:order:' .. voucherId
 
 ---脚本业务
+--判断秒杀时间
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+local beginTime = tonumber(window[1])
+local endTime = tonumber(window[2])
+if (beginTime == nil or endTime == nil) then
+    return 5
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (now < beginTime) then
+    return 3
+end
+if (now > endTime) then
+    return 4
+end
 --判断库存是否充足 get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil) then
+    return 5
+end
+if (stock <= 0) then
     --库存不足,返回1
     return 1
 end
@@ -28,5 +60,10 @@ end
 redis.call('incrby', stockKey, -1)
 --下单(保存用户) sadd orderKey  userId
 redis.call('sadd', orderKey, userId)
+--订单结果: 处理中, 带上用户id, 查询结果时检查订单是否属于查询的用户
+redis.call('hset', statusKey, orderId, '-1:' .. userId)
+redis.call('expire', statusKey, statusTtl)
+--发送消息到队列中 XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 --下单成功
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,55 @@
+---秒杀的全局限流, 滑动窗口计数: 用当前窗口和上一个窗口的计数按时间加权估算最近一个窗口内的请求数
+---每个窗口只有一个计数key, 热点优惠券也只是 GET + INCR, 不会像有序集合那样随请求数增长
+---返回值: 0 通过, 1 优惠券限流, 2 用户限流
+
+--使用redis服务器的时间, 需要按命令复制(redis 5之后是默认行为)
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+
+---参数列表
+--优惠券计数key前缀, 用户计数key前缀, 实际的计数key是 前缀:窗口编号, 不在KEYS中
+--两个前缀必须带同一个hash tag(seckill:limit:{voucherId}:...), 保证拼接出来的key和KEYS在同一个slot
+local voucherKey = KEYS[1]
+local userKey = KEYS[2]
+--窗口大小(毫秒)
+local window = tonumber(ARGV[1])
+--每个窗口内优惠券/用户的请求上限, 小于等于0表示不限制
+local voucherLimit = tonumber(ARGV[2])
+local userLimit = tonumber(ARGV[3])
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local index = math.floor(now / window)
+--当前窗口已经过去的比例, 上一个窗口还有 1 - elapsed 的部分在滑动窗口内
+local elapsed = (now - index * window) / window
+
+--估算滑动窗口内的请求数
+local function estimate(key)
+    local current = tonumber(redis.call('get', key .. ':' .. index)) or 0
+    local previous = tonumber(redis.call('get', key .. ':' .. (index - 1))) or 0
+    return previous * (1 - elapsed) + current
+end
+
+if (voucherLimit > 0 and estimate(voucherKey) >= voucherLimit) then
+    return 1
+end
+if (userLimit > 0 and estimate(userKey) >= userLimit) then
+    return 2
+end
+
+--计数, 保留两个窗口
+local function incr(key)
+    local k = key .. ':' .. index
+    if (redis.call('incr', k) == 1) then
+        redis.call('pexpire', k, window * 2)
+    end
+end
+
+if (voucherLimit > 0) then
+    incr(voucherKey)
+end
+if (userLimit > 0) then
+    incr(userKey)
+end
+return 0
@@ -0,0 +1,51 @@
+---分片库存的秒杀脚本, 在用户所属的分片(home shard)上执行
+---元数据, 库存和订单key带相同的hash tag, 在同一个slot中
+---返回值: 0 成功, 2 重复下单, 3 未开始, 4 已结束, 5 没有预热, 9 本分片库存不足(用户已占位)
+
+--使用redis服务器的时间, 需要按命令复制(redis 5之后是默认行为)
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+
+---参数列表
+--元数据key seckill:voucher:{voucherId:i}
+local voucherKey = KEYS[1]
+--库存key seckill:stock:{voucherId:i}
+local stockKey = KEYS[2]
+--订单key seckill:order:{voucherId:i}
+local orderKey = KEYS[3]
+--用户id
+local userId = ARGV[1]
+
+---脚本业务
+--判断秒杀时间
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+local beginTime = tonumber(window[1])
+local endTime = tonumber(window[2])
+if (beginTime == nil or endTime == nil) then
+    return 5
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (now < beginTime) then
+    return 3
+end
+if (now > endTime) then
+    return 4
+end
+--判断用户是否下单, 一人一单只在自己的分片上检查
+if (redis.call('sismember', orderKey, userId) == 1) then
+    --存在说明重复下单,返回2
+    return 2
+end
+--下单(保存用户), 本分片没有库存时也先占住, 防止同一个用户在其他分片上重复下单
+redis.call('sadd', orderKey, userId)
+--判断库存是否充足
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    --本分片库存不足,返回9, 由调用方去其他分片扣库存
+    return 9
+end
+--扣库存
+redis.call('incrby', stockKey, -1)
+--下单成功
+return 0
@@ -0,0 +1,61 @@
+---把秒杀券的库存重新拆成N个分片, 原来没有分片和已经分片(再次拆分)都走这个脚本, 一次执行完成
+---脚本访问多个slot的key, 只能在单机/主从模式下执行, 拆分是开售前的管理操作
+
+---参数列表
+--KEYS[1] 分片数key, KEYS[2] 不分片的库存key, KEYS[3] 不分片的订单key, KEYS[4] 不分片的元数据key
+--之后是原来的分片(没有分片时为空), 然后是新的分片, 每个分片3个key: 元数据, 库存, 订单
+--ARGV[1] 原来的分片数, ARGV[2] 新的分片数, ARGV[3] 调用方读到的已下单用户数
+--ARGV[4..] 已下单用户id和新的分片下标(从0开始), 两两一组
+local oldShards = tonumber(ARGV[1])
+local newShards = tonumber(ARGV[2])
+local buyers = tonumber(ARGV[3])
+
+---脚本业务
+--调用方读取之后分片数或已下单用户发生变化, 返回-1
+if ((tonumber(redis.call('get', KEYS[1])) or 1) ~= oldShards) then
+    return -1
+end
+local oldCount = 0
+if (oldShards > 1) then
+    oldCount = oldShards
+end
+local count = 0
+local total = 0
+if (oldCount == 0) then
+    count = redis.call('scard', KEYS[3])
+    total = tonumber(redis.call('get', KEYS[2])) or 0
+end
+for i = 0, oldCount - 1 do
+    count = count + redis.call('scard', KEYS[7 + i * 3])
+    total = total + (tonumber(redis.call('get', KEYS[6 + i * 3])) or 0)
+end
+if (count ~= buyers) then
+    return -1
+end
+--删除原来的库存和订单, 以及多出来的分片元数据
+redis.call('del', KEYS[2], KEYS[3])
+for i = 0, oldCount - 1 do
+    redis.call('del', KEYS[6 + i * 3], KEYS[7 + i * 3])
+    if (i >= newShards) then
+        redis.call('del', KEYS[5 + i * 3])
+    end
+end
+--库存平均分配, 元数据每个分片一份
+local base = 5 + oldCount * 3
+local meta = redis.call('hgetall', KEYS[4])
+for i = 0, newShards - 1 do
+    local stock = math.floor(total / newShards)
+    if (i < total % newShards) then
+        stock = stock + 1
+    end
+    redis.call('set', KEYS[base + i * 3 + 1], stock)
+    if (#meta > 0) then
+        redis.call('hmset', KEYS[base + i * 3], unpack(meta))
+    end
+end
+--已下单用户放到新的home shard
+for i = 4, #ARGV, 2 do
+    redis.call('sadd', KEYS[base + tonumber(ARGV[i + 1]) * 3 + 2], ARGV[i])
+end
+redis.call('set', KEYS[1], newShards)
+return total
@@ -0,0 +1,13 @@
+---从其他分片扣一个库存
+
+---参数列表
+--库存key seckill:stock:{voucherId:i}
+local stockKey = KEYS[1]
+
+---脚本业务
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    --库存不足,返回1
+    return 1
+end
+redis.call('incrby', stockKey, -1)
+return 0
@@ -0,0 +1,11 @@
+---释放锁, 只有锁的值等于自己的标识时才删除, 防止误删其他线程的锁
+
+--锁key
+local lockKey = KEYS[1]
+--当前线程的标识
+local token = ARGV[1]
+
+if (redis.call('get', lockKey) == token) then
+    return redis.call('del', lockKey)
+end
+return 0
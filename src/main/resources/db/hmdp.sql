@@ -99,6 +99,21 @@ CREATE TABLE `tb_seckill_voucher`  (
 -- Records of tb_seckill_voucher
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_seckill_buyer_archive
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_seckill_buyer_archive`;
+CREATE TABLE `tb_seckill_buyer_archive`  (
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '秒杀优惠券的id',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '抢到秒杀券的用户id',
+  `archive_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '归档时间',
+  PRIMARY KEY (`voucher_id`, `user_id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '秒杀结束后归档的已下单用户(redis中的已下单集合)' ROW_FORMAT = Compact;
+
+-- ----------------------------
+-- Records of tb_seckill_buyer_archive
+-- ----------------------------
+
 -- ----------------------------
 -- Table structure for tb_shop
 -- ----------------------------
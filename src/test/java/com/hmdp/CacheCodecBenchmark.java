@@ -0,0 +1,85 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author: lemme
+ * @ClassName: CacheCodecBenchmark
+ * @PackageName: com.hmdp
+ * @Description: 缓存编码的基准测试, 对比现在的json(旧格式)和二进制编码的字节数和耗时
+ * 运行: 执行main方法, 字节数在每组测试开始时打印
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    /**
+     * 0 旧格式json, 1 带版本号的json, 2 二进制
+     */
+    @Param({"0", "2"})
+    private int version;
+
+    private CacheSerializer serializer;
+    private Shop shop;
+    private byte[] bytes;
+    private byte[] expireBytes;
+
+    @Setup
+    public void setup() {
+        serializer = new CacheSerializer();
+        serializer.setWriteVersion(version);
+        shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now())
+                .setUpdateTime(LocalDateTime.now());
+        bytes = serializer.serialize(shop);
+        expireBytes = serializer.serializeWithExpire(shop, LocalDateTime.now().plusMinutes(30), 12L);
+        System.out.println("version=" + version + ", bytes=" + bytes.length + ", logicalExpireBytes=" + expireBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return serializer.serialize(shop);
+    }
+
+    @Benchmark
+    public Shop decode() {
+        return serializer.deserialize(bytes, Shop.class);
+    }
+
+    @Benchmark
+    public RedisData decodeWithExpire() {
+        return serializer.deserializeWithExpire(expireBytes, Shop.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
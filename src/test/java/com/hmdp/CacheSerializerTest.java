@@ -0,0 +1,186 @@
+package com.hmdp;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static com.hmdp.utils.RedisConstants.CACHE_COMPRESS_THRESHOLD;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: CacheSerializerTest
+ * @PackageName: com.hmdp
+ * @Description: 缓存编码的正确性: 每个Schema的往返, null字段, 压缩阈值, 版本号, 旧格式json
+ */
+class CacheSerializerTest {
+
+    private static final int[] VERSIONS = {CacheSerializer.LEGACY, JsonCacheCodec.VERSION, BinaryCacheCodec.VERSION};
+    private static final LocalDateTime TIME = LocalDateTime.of(2022, 5, 1, 10, 30, 15);
+
+    private static CacheSerializer serializer(int version) {
+        CacheSerializer serializer = new CacheSerializer();
+        serializer.setWriteVersion(version);
+        return serializer;
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/1.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(TIME)
+                .setUpdateTime(TIME.plusDays(1));
+    }
+
+    @Test
+    void shopRoundTrip() {
+        for (int version : VERSIONS) {
+            CacheSerializer serializer = serializer(version);
+            assertEquals(shop(), serializer.deserialize(serializer.serialize(shop()), Shop.class), "version=" + version);
+        }
+    }
+
+    @Test
+    void shopTypeArrayRoundTrip() {
+        ShopType[] types = {
+                new ShopType().setId(1L).setName("美食").setIcon("/types/ms.png").setSort(1),
+                new ShopType().setId(2L).setName("KTV").setIcon("/types/KTV.png").setSort(2)
+        };
+        for (int version : VERSIONS) {
+            CacheSerializer serializer = serializer(version);
+            assertArrayEquals(types, serializer.deserialize(serializer.serialize(types), ShopType[].class), "version=" + version);
+        }
+    }
+
+    @Test
+    void userRoundTrip() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        for (int version : VERSIONS) {
+            CacheSerializer serializer = serializer(version);
+            assertEquals(user, serializer.deserialize(serializer.serialize(user), UserDTO.class), "version=" + version);
+        }
+    }
+
+    /**
+     * 二进制编码每个包装类型字段都可以为null, 数组元素也可以为null
+     */
+    @Test
+    void nullFields() {
+        CacheSerializer serializer = serializer(BinaryCacheCodec.VERSION);
+        Shop shop = new Shop().setId(2L);
+        assertEquals(shop, serializer.deserialize(serializer.serialize(shop), Shop.class));
+
+        ShopType[] types = {new ShopType().setId(1L), null};
+        assertArrayEquals(types, serializer.deserialize(serializer.serialize(types), ShopType[].class));
+
+        UserDTO user = new UserDTO();
+        assertEquals(user, serializer.deserialize(serializer.serialize(user), UserDTO.class));
+    }
+
+    /**
+     * 达到阈值的数据压缩(头的0x40位), 没有达到的不压缩, 解压之后和原数据一致
+     */
+    @Test
+    void compressThreshold() {
+        CacheSerializer serializer = serializer(BinaryCacheCodec.VERSION);
+        Shop small = shop();
+        byte[] smallBytes = serializer.serialize(small);
+        assertTrue(smallBytes.length < CACHE_COMPRESS_THRESHOLD);
+        assertEquals(0, smallBytes[0] & 0x40);
+
+        Shop large = shop().setImages(StrUtil.repeat("https://qcloud.dpfile.com/pc/1.jpg,", 50));
+        byte[] largeBytes = serializer.serialize(large);
+        assertNotEquals(0, largeBytes[0] & 0x40);
+        assertTrue(largeBytes.length < large.getImages().length());
+        assertEquals(large, serializer.deserialize(largeBytes, Shop.class));
+
+        RedisData redisData = serializer.deserializeWithExpire(serializer.serializeWithExpire(large, TIME, 5L), Shop.class);
+        assertEquals(large, redisData.getData());
+    }
+
+    /**
+     * 读取时按数据中的版本号选择编码, 和本节点写入用的版本无关(灰度发布时新旧节点混跑)
+     */
+    @Test
+    void readsAnyWrittenVersion() {
+        byte[] binary = serializer(BinaryCacheCodec.VERSION).serialize(shop());
+        byte[] json = serializer(JsonCacheCodec.VERSION).serialize(shop());
+        for (int version : VERSIONS) {
+            CacheSerializer reader = serializer(version);
+            assertEquals(shop(), reader.deserialize(binary, Shop.class));
+            assertEquals(shop(), reader.deserialize(json, Shop.class));
+        }
+    }
+
+    @Test
+    void unknownVersion() {
+        byte[] bytes = serializer(BinaryCacheCodec.VERSION).serialize(shop());
+        bytes[0] = (byte) ((bytes[0] & 0xF0) | 0x0F);
+        assertThrows(IllegalStateException.class, () -> serializer(BinaryCacheCodec.VERSION).deserialize(bytes, Shop.class));
+    }
+
+    /**
+     * 没有版本号的旧数据(纯json)
+     */
+    @Test
+    void legacyJson() {
+        CacheSerializer serializer = serializer(BinaryCacheCodec.VERSION);
+        byte[] bytes = JSONUtil.toJsonStr(shop()).getBytes(StandardCharsets.UTF_8);
+        assertEquals(shop(), serializer.deserialize(bytes, Shop.class));
+        assertNull(serializer.readExpireTime(bytes));
+
+        RedisData legacy = new RedisData();
+        legacy.setData(shop());
+        legacy.setExpireTime(TIME);
+        legacy.setRebuildCost(12L);
+        byte[] expireBytes = JSONUtil.toJsonStr(legacy).getBytes(StandardCharsets.UTF_8);
+        RedisData redisData = serializer.deserializeWithExpire(expireBytes, Shop.class);
+        assertEquals(shop(), redisData.getData());
+        assertEquals(TIME, redisData.getExpireTime());
+        assertEquals(12L, redisData.getRebuildCost());
+        assertEquals(TIME, serializer.readExpireTime(expireBytes));
+    }
+
+    @Test
+    void logicalExpire() {
+        for (int version : VERSIONS) {
+            CacheSerializer serializer = serializer(version);
+            byte[] bytes = serializer.serializeWithExpire(shop(), TIME, 12L);
+            RedisData redisData = serializer.deserializeWithExpire(bytes, Shop.class);
+            assertEquals(shop(), redisData.getData(), "version=" + version);
+            assertEquals(TIME, redisData.getExpireTime(), "version=" + version);
+            assertEquals(12L, redisData.getRebuildCost(), "version=" + version);
+            assertEquals(TIME, serializer.readExpireTime(bytes), "version=" + version);
+        }
+        //数据库中已经删除的数据, 逻辑过期的value为null
+        CacheSerializer serializer = serializer(BinaryCacheCodec.VERSION);
+        RedisData redisData = serializer.deserializeWithExpire(serializer.serializeWithExpire(null, TIME, null), Shop.class);
+        assertNull(redisData.getData());
+        assertNull(redisData.getRebuildCost());
+        assertNull(serializer.readExpireTime(serializer.serialize(shop())));
+    }
+}
@@ -0,0 +1,242 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.SeckillOrderStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STATUS_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAM_CLAIM_IDLE;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @Author: lemme
+ * @ClassName: OrderJournalTest
+ * @PackageName: com.hmdp
+ * @Description: 订单日志的正确性: 追加后重新打开能恢复, 损坏和没写完的记录, 中间的空洞, 检查点推进, 分段文件删除,
+ * 结果广播丢失并且结果已经过期时的检查
+ * 每个分段4条记录, 少量订单就能跨越多个分段
+ */
+class OrderJournalTest {
+
+    private static final int SEGMENT_RECORDS = 4;
+
+    @TempDir
+    File dir;
+
+    private final List<OrderJournal> opened = new ArrayList<>();
+    private final VoucherOrderMapper voucherOrderMapper = mock(VoucherOrderMapper.class);
+
+    @AfterEach
+    void closeAll() {
+        for (OrderJournal journal : opened) {
+            ReflectionTestUtils.invokeMethod(journal, "destroy");
+        }
+    }
+
+    private OrderJournal open() {
+        return open(Clock.systemUTC());
+    }
+
+    private OrderJournal open(Clock clock) {
+        OrderJournal journal = new OrderJournal(dir, SEGMENT_RECORDS);
+        journal.setClock(clock);
+        ReflectionTestUtils.setField(journal, "seckillOrderStatus", mock(SeckillOrderStatus.class));
+        ReflectionTestUtils.setField(journal, "voucherOrderMapper", voucherOrderMapper);
+        ReflectionTestUtils.invokeMethod(journal, "init");
+        opened.add(journal);
+        return journal;
+    }
+
+    private void close(OrderJournal journal) {
+        opened.remove(journal);
+        ReflectionTestUtils.invokeMethod(journal, "destroy");
+    }
+
+    private static VoucherOrder order(long id) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(id);
+        order.setUserId(1000 + id);
+        order.setVoucherId(7L);
+        return order;
+    }
+
+    private static List<Long> ids(List<VoucherOrder> orders) {
+        List<Long> ids = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            assertEquals(1000 + order.getId(), order.getUserId());
+            assertEquals(7L, order.getVoucherId());
+            ids.add(order.getId());
+        }
+        return ids;
+    }
+
+    private static long stat(OrderJournal journal, String name) {
+        return ((Number) journal.stats().get(name)).longValue();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private File segmentFile(long index) {
+        return new File(dir, "orders-" + String.format("%012d", index) + ".log");
+    }
+
+    @Test
+    void appendReopenRecover() throws Exception {
+        OrderJournal journal = open();
+        for (long id = 1; id <= 3; id++) {
+            journal.append(order(id));
+        }
+        await(() -> stat(journal, "flushedSeq") == 3);
+        close(journal);
+
+        OrderJournal reopened = open();
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids(reopened.takeRecovered()));
+        assertTrue(reopened.takeRecovered().isEmpty());
+        //新记录接在恢复的记录之后
+        assertEquals(3, stat(reopened, "writeSeq"));
+        reopened.append(order(4));
+        close(reopened);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), ids(open().takeRecovered()));
+    }
+
+    /**
+     * crc不对的记录和魔数没有写完的记录都跳过, 其他记录正常恢复
+     */
+    @Test
+    void tornAndCorruptRecords() throws Exception {
+        OrderJournal journal = open();
+        for (long id = 1; id <= 4; id++) {
+            journal.append(order(id));
+        }
+        close(journal);
+
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(0), "rw")) {
+            //第2条记录的用户id被改动
+            file.seek(32 + 8);
+            file.writeLong(999);
+            //第3条记录没有写完魔数
+            file.seek(64 + 28);
+            file.writeInt(0);
+        }
+        assertEquals(Arrays.asList(1L, 4L), ids(open().takeRecovered()));
+    }
+
+    /**
+     * 序号分配之后没有写入(写入线程卡住), 之后的记录先等待, 超时后跳过空洞刷盘; 恢复时跳过空洞
+     */
+    @Test
+    void holeInTheMiddle() throws Exception {
+        OrderJournal journal = open();
+        journal.append(order(1));
+        ((AtomicLong) ReflectionTestUtils.getField(journal, "writeSeq")).getAndIncrement();
+        journal.append(order(3));
+        assertEquals(1, stat(journal, "flushedSeq"));
+        await(() -> stat(journal, "flushedSeq") == 3);
+        assertEquals(1, stat(journal, "skippedHoleCount"));
+        close(journal);
+
+        assertEquals(Arrays.asList(1L, 3L), ids(open().takeRecovered()));
+    }
+
+    /**
+     * 检查点停在最早未完成的记录上, 全部完成后推进到末尾, 重新打开时没有需要恢复的订单
+     */
+    @Test
+    void checkpointAdvance() throws Exception {
+        OrderJournal journal = open();
+        for (long id = 1; id <= 3; id++) {
+            journal.append(order(id));
+        }
+        journal.complete(2L);
+        await(() -> stat(journal, "flushedSeq") == 3);
+        assertEquals(0, stat(journal, "checkpoint"));
+
+        journal.complete(1L);
+        await(() -> stat(journal, "checkpoint") == 2);
+        journal.complete(3L);
+        await(() -> stat(journal, "checkpoint") == 3);
+        close(journal);
+
+        assertEquals(Collections.emptyList(), open().takeRecovered());
+    }
+
+    /**
+     * 检查点之前的分段文件删除, 检查点所在的分段保留
+     */
+    @Test
+    void segmentDeletion() throws Exception {
+        OrderJournal journal = open();
+        for (long id = 1; id <= 10; id++) {
+            journal.append(order(id));
+        }
+        await(() -> stat(journal, "flushedSeq") == 10);
+        assertTrue(segmentFile(0).exists());
+        assertTrue(segmentFile(1).exists());
+        assertTrue(segmentFile(2).exists());
+
+        for (long id = 1; id <= 9; id++) {
+            journal.complete(id);
+        }
+        await(() -> stat(journal, "checkpoint") == 9);
+        await(() -> !segmentFile(0).exists() && !segmentFile(1).exists());
+        assertTrue(segmentFile(2).exists());
+        close(journal);
+
+        assertEquals(Collections.singletonList(10L), ids(open().takeRecovered()));
+    }
+
+    /**
+     * 结果广播丢失, redis中的结果也已经过期: 已经落库的订单查数据库后完成,
+     * 没有落库的订单超过结果的过期时间后丢弃, 检查点推进到末尾
+     */
+    @Test
+    void statusExpiredWithoutPubSub() throws Exception {
+        Instant begin = Instant.now();
+        when(voucherOrderMapper.selectById(1L)).thenReturn(order(1));
+        OrderJournal journal = open(Clock.fixed(begin, ZoneOffset.UTC));
+        journal.append(order(1));
+        journal.append(order(2));
+        await(() -> stat(journal, "flushedSeq") == 2);
+        assertEquals(0, stat(journal, "checkpoint"));
+
+        journal.setClock(Clock.fixed(begin.plusMillis(SECKILL_STREAM_CLAIM_IDLE), ZoneOffset.UTC));
+        await(() -> stat(journal, "resolvedCount") == 1);
+        await(() -> stat(journal, "checkpoint") == 1);
+        assertEquals(1, stat(journal, "openOrders"));
+        assertEquals(0, stat(journal, "droppedCount"));
+
+        journal.setClock(Clock.fixed(begin.plus(Duration.ofSeconds(SECKILL_STATUS_TTL)), ZoneOffset.UTC));
+        await(() -> stat(journal, "droppedCount") == 1);
+        await(() -> stat(journal, "checkpoint") == 2);
+        assertEquals(0, stat(journal, "openOrders"));
+        close(journal);
+
+        assertEquals(Collections.emptyList(), open().takeRecovered());
+    }
+}
@@ -0,0 +1,124 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderRingBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author: lemme
+ * @ClassName: OrderRingBufferBenchmark
+ * @PackageName: com.hmdp
+ * @Description: 订单交接的基准测试, 200个生产者线程, 一个消费者线程批量取走
+ * 对比 ArrayBlockingQueue(每个订单一个对象, 一把锁) 和环形缓冲区(预分配槽位, CAS申请)的不同等待策略
+ * 运行: 执行main方法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(200)
+@Fork(1)
+public class OrderRingBufferBenchmark {
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int BATCH = 500;
+
+    @Param({"queue", "ring-park", "ring-yield", "ring-spin"})
+    private String mode;
+
+    private ArrayBlockingQueue<VoucherOrder> queue;
+    private OrderRingBuffer ring;
+    private Thread consumer;
+    private volatile boolean running;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        long next;
+    }
+
+    @Setup
+    public void setup() {
+        running = true;
+        if ("queue".equals(mode)) {
+            queue = new ArrayBlockingQueue<>(CAPACITY);
+            consumer = new Thread(() -> {
+                List<VoucherOrder> batch = new ArrayList<>(BATCH);
+                while (running) {
+                    try {
+                        VoucherOrder first = queue.poll(10, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        batch.add(first);
+                        queue.drainTo(batch, BATCH - 1);
+                        batch.clear();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        } else {
+            OrderRingBuffer.WaitStrategy waitStrategy = "ring-park".equals(mode) ? OrderRingBuffer.WaitStrategy.PARK
+                    : "ring-yield".equals(mode) ? OrderRingBuffer.WaitStrategy.YIELD : OrderRingBuffer.WaitStrategy.BUSY_SPIN;
+            ring = new OrderRingBuffer(CAPACITY, waitStrategy);
+            long[] sum = new long[1];
+            consumer = new Thread(() -> {
+                while (running) {
+                    if (ring.await(TimeUnit.MILLISECONDS.toNanos(10))) {
+                        ring.drain(BATCH, slot -> sum[0] += slot.orderId);
+                    }
+                }
+            });
+        }
+        consumer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running = false;
+        consumer.interrupt();
+        consumer.join();
+    }
+
+    /**
+     * 交接一个订单, 满了就等待(和读取消息的线程遇到背压时一样)
+     */
+    @Benchmark
+    public void handoff(Producer producer) throws InterruptedException {
+        long orderId = ++producer.next;
+        if (queue != null) {
+            VoucherOrder order = new VoucherOrder();
+            order.setId(orderId);
+            order.setUserId(orderId);
+            order.setVoucherId(1L);
+            queue.put(order);
+            return;
+        }
+        long seq;
+        while ((seq = ring.claim(1, TimeUnit.MILLISECONDS.toNanos(10))) < 0) {
+            if (!running) {
+                return;
+            }
+        }
+        OrderRingBuffer.Slot slot = ring.get(seq);
+        slot.orderId = orderId;
+        slot.userId = orderId;
+        slot.voucherId = 1L;
+        ring.publish(seq, seq);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(OrderRingBufferBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,155 @@
+package com.hmdp;
+
+import com.hmdp.utils.OrderRingBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: OrderRingBufferTest
+ * @PackageName: com.hmdp
+ * @Description: 环形缓冲区的正确性: 多生产者下每个生产者的顺序不变, 槽位不丢不重, 序号绕圈, 缓冲区满, 挂起的消费者被唤醒
+ */
+class OrderRingBufferTest {
+
+    /**
+     * 多个生产者(单个和批量申请)通过一个很小的缓冲区写入, 消费者收到的订单不丢不重, 同一个生产者的订单保持顺序
+     */
+    @Test
+    void multiProducer() throws Exception {
+        int producers = 4;
+        int perProducer = 20000;
+        OrderRingBuffer ring = new OrderRingBuffer(64, OrderRingBuffer.WaitStrategy.PARK);
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                futures.add(executor.submit(() -> {
+                    int i = 0;
+                    while (i < perProducer) {
+                        //偶数生产者一次申请3个槽位
+                        int n = producer % 2 == 0 ? Math.min(3, perProducer - i) : 1;
+                        long lo = ring.claim(n, TimeUnit.SECONDS.toNanos(10));
+                        assertTrue(lo >= 0);
+                        for (int k = 0; k < n; k++) {
+                            OrderRingBuffer.Slot slot = ring.get(lo + k);
+                            slot.orderId = i++;
+                            slot.userId = producer;
+                            slot.voucherId = 7L;
+                        }
+                        ring.publish(lo, lo + n - 1);
+                    }
+                    return null;
+                }));
+            }
+            long[] next = new long[producers];
+            int received = 0;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (received < producers * perProducer) {
+                assertTrue(System.nanoTime() < deadline, "消费超时, 已收到:" + received);
+                if (!ring.await(TimeUnit.MILLISECONDS.toNanos(100))) {
+                    continue;
+                }
+                received += ring.drain(500, slot -> {
+                    int producer = (int) slot.userId;
+                    assertEquals(next[producer]++, slot.orderId);
+                    assertEquals(7L, slot.voucherId);
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            for (long count : next) {
+                assertEquals(perProducer, count);
+            }
+            assertEquals(0, ring.size());
+            assertFalse(ring.await(TimeUnit.MILLISECONDS.toNanos(10)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 序号超过容量之后回到同一个槽位, 上一圈的可读标记不会被当成这一圈的
+     */
+    @Test
+    void wrapAround() {
+        OrderRingBuffer ring = new OrderRingBuffer(4, OrderRingBuffer.WaitStrategy.BUSY_SPIN);
+        long orderId = 0;
+        for (int round = 0; round < 10; round++) {
+            //上一圈已经消费的槽位不可读
+            assertEquals(0, ring.drain(4, slot -> fail("读到了上一圈的槽位")));
+            for (int i = 0; i < 4; i++) {
+                assertTrue(ring.tryPublish(orderId++, round, 7L, null));
+            }
+            assertFalse(ring.tryPublish(orderId, round, 7L, null));
+            List<Long> ids = new ArrayList<>();
+            assertEquals(4, ring.drain(10, slot -> ids.add(slot.orderId)));
+            for (int i = 0; i < 4; i++) {
+                assertEquals(orderId - 4 + i, (long) ids.get(i));
+            }
+        }
+        //第11圈的第一个序号
+        assertEquals(40, ring.tryClaim(1));
+    }
+
+    /**
+     * 缓冲区满时立即申请失败, 限时申请等到超时; 消费之后空出的槽位可以再申请
+     * 申请了但还没发布的槽位挡住之后的槽位
+     */
+    @Test
+    void fullBuffer() {
+        OrderRingBuffer ring = new OrderRingBuffer(8, OrderRingBuffer.WaitStrategy.PARK);
+        assertThrows(IllegalArgumentException.class, () -> ring.tryClaim(9));
+        assertThrows(IllegalArgumentException.class, () -> new OrderRingBuffer(6, OrderRingBuffer.WaitStrategy.PARK));
+
+        long lo = ring.tryClaim(8);
+        assertEquals(0, lo);
+        assertEquals(8, ring.size());
+        assertEquals(-1, ring.tryClaim(1));
+        long begin = System.nanoTime();
+        assertEquals(-1, ring.claim(1, TimeUnit.MILLISECONDS.toNanos(20)));
+        assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        //只发布了后面的槽位, 消费者要等第一个槽位
+        ring.publish(1, 7);
+        assertEquals(0, ring.drain(8, slot -> {
+        }));
+        ring.publish(0, 0);
+        assertEquals(3, ring.drain(3, slot -> {
+        }));
+        assertEquals(8, ring.tryClaim(3));
+        assertEquals(-1, ring.tryClaim(1));
+    }
+
+    /**
+     * 消费者挂起之后, 生产者发布时被唤醒, 不用等到超时
+     */
+    @Test
+    void parkedConsumerWakesUp() throws Exception {
+        OrderRingBuffer ring = new OrderRingBuffer(8, OrderRingBuffer.WaitStrategy.PARK);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> waited = executor.submit(() -> {
+                long begin = System.nanoTime();
+                assertTrue(ring.await(TimeUnit.SECONDS.toNanos(10)));
+                return System.nanoTime() - begin;
+            });
+            //让消费者进入挂起
+            Thread.sleep(100);
+            long published = System.nanoTime();
+            assertTrue(ring.tryPublish(1L, 1L, 7L, null));
+            long elapsed = waited.get(5, TimeUnit.SECONDS);
+            assertTrue(elapsed < TimeUnit.SECONDS.toNanos(1));
+            assertTrue(System.nanoTime() - published < TimeUnit.SECONDS.toNanos(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author: lemme
+ * @ClassName: RedisIdWorkerBenchmark
+ * @PackageName: com.hmdp
+ * @Description: 全局id生成的基准测试, 对比每个id一次INCR和号段模式的吞吐量
+ * 需要一个redis, 地址通过 -Dredis.host -Dredis.port -Dredis.password 指定, 默认本机6379
+ * 运行: 执行main方法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class RedisIdWorkerBenchmark {
+
+    @Param({"incr", "segment"})
+    private String mode;
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisIdWorker idWorker;
+
+    @Setup
+    public void setup() {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "127.0.0.1"), Integer.getInteger("redis.port", 6379));
+        String password = System.getProperty("redis.password");
+        if (password != null) {
+            configuration.setPassword(password);
+        }
+        connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        idWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(idWorker, "stringRedisTemplate", new StringRedisTemplate(connectionFactory));
+        idWorker.setSegmentMode("segment".equals(mode));
+    }
+
+    @TearDown
+    public void tearDown() {
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return idWorker.nextId("benchmark");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RedisIdWorkerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,168 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_SEGMENT_PREFETCH_RATIO;
+import static com.hmdp.utils.RedisConstants.ID_SEGMENT_STEP;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: RedisIdWorkerTest
+ * @PackageName: com.hmdp
+ * @Description: 号段模式的正确性: 号段用完换段, 剩20%时预取, 预取失败同步租用, 跨天, 并发下id不重复
+ * redis用mock代替, INCRBY在内存中按key累加
+ */
+class RedisIdWorkerTest {
+
+    private static final String PREFIX = "order";
+    private static final LocalDateTime TIME = LocalDateTime.of(2022, 6, 15, 23, 59, 58);
+    private static final long BEGIN_TIMESTAMP = 1655251200L;
+
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    /**
+     * INCRBY的调用次数, failAt次调用抛出异常(模拟redis连接失败)
+     */
+    private final AtomicInteger leases = new AtomicInteger();
+    private volatile int failAt = -1;
+
+    private ValueOperations<String, String> ops;
+    private RedisIdWorker idWorker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setup() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> {
+            if (leases.incrementAndGet() == failAt) {
+                throw new RedisConnectionFailureException("模拟连接失败");
+            }
+            String key = invocation.getArgument(0);
+            long delta = invocation.getArgument(1);
+            return counters.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(delta);
+        });
+        idWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(idWorker, "stringRedisTemplate", template);
+        idWorker.setSegmentMode(true);
+        setTime(TIME);
+    }
+
+    private void setTime(LocalDateTime time) {
+        idWorker.setClock(Clock.fixed(time.toInstant(ZoneOffset.UTC), ZoneOffset.UTC));
+    }
+
+    private static long sequence(long id) {
+        return id & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 号段用完之后接着下一段发号, 序列号连续
+     */
+    @Test
+    void exhaustSegment() {
+        for (long i = 1; i <= ID_SEGMENT_STEP * 2 + 1; i++) {
+            long id = idWorker.nextId(PREFIX);
+            assertEquals(i, sequence(id));
+            assertEquals(TIME.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP, id >>> 32);
+        }
+        assertEquals(ID_SEGMENT_STEP * 3, counters.get("icr:order:2022:06:15").get());
+    }
+
+    /**
+     * 用到还剩20%时才预取下一段, 之前只租用过一次
+     */
+    @Test
+    void prefetchAtRatio() {
+        long prefetchAt = ID_SEGMENT_STEP - (long) (ID_SEGMENT_STEP * ID_SEGMENT_PREFETCH_RATIO);
+        for (long i = 1; i < prefetchAt; i++) {
+            idWorker.nextId(PREFIX);
+        }
+        verify(ops, times(1)).increment(anyString(), eq(ID_SEGMENT_STEP));
+        idWorker.nextId(PREFIX);
+        verify(ops, timeout(1000).times(2)).increment(anyString(), eq(ID_SEGMENT_STEP));
+        //预取好的号段在用完之后才切换
+        for (long i = prefetchAt + 1; i <= ID_SEGMENT_STEP + 1; i++) {
+            assertEquals(i, sequence(idWorker.nextId(PREFIX)));
+        }
+        verify(ops, times(2)).increment(anyString(), eq(ID_SEGMENT_STEP));
+    }
+
+    /**
+     * 预取失败不影响发号, 号段用完时同步租用
+     */
+    @Test
+    void prefetchFailure() {
+        failAt = 2;
+        for (long i = 1; i <= ID_SEGMENT_STEP; i++) {
+            assertEquals(i, sequence(idWorker.nextId(PREFIX)));
+        }
+        verify(ops, timeout(1000).times(2)).increment(anyString(), eq(ID_SEGMENT_STEP));
+        //失败的INCRBY没有生效, 同步租用的号段紧接着上一段
+        assertEquals(ID_SEGMENT_STEP + 1, sequence(idWorker.nextId(PREFIX)));
+        assertEquals(3, leases.get());
+    }
+
+    /**
+     * 跨天后旧号段作废, 从新一天的key重新租用, 序列号从1开始
+     */
+    @Test
+    void daySwitch() {
+        assertEquals(1, sequence(idWorker.nextId(PREFIX)));
+        assertEquals(2, sequence(idWorker.nextId(PREFIX)));
+        LocalDateTime nextDay = TIME.plusSeconds(2);
+        setTime(nextDay);
+        long id = idWorker.nextId(PREFIX);
+        assertEquals(1, sequence(id));
+        assertEquals(nextDay.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP, id >>> 32);
+        assertEquals(ID_SEGMENT_STEP, counters.get("icr:order:2022:06:15").get());
+        assertEquals(ID_SEGMENT_STEP, counters.get("icr:order:2022:06:16").get());
+    }
+
+    /**
+     * 多线程同时发号, 跨越多个号段, id不重复
+     */
+    @Test
+    void uniqueUnderConcurrency() throws Exception {
+        int threads = 8;
+        int perThread = (int) ID_SEGMENT_STEP;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            Future<?>[] futures = new Future<?>[threads];
+            for (int t = 0; t < threads; t++) {
+                futures[t] = executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        assertTrue(ids.add(idWorker.nextId(PREFIX)));
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(threads * perThread, ids.size());
+    }
+}
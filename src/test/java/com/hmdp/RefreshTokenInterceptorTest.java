@@ -0,0 +1,110 @@
+package com.hmdp;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * @Author: lemme
+ * @ClassName: RefreshTokenInterceptorTest
+ * @PackageName: com.hmdp
+ * @Description: 登录用户不能在线程间泄漏: 异步请求(DeferredResult)之后, 同一个线程上没有token的请求拿不到上一个用户
+ * MockMvc在当前线程上依次处理请求, 相当于tomcat复用同一个工作线程
+ */
+class RefreshTokenInterceptorTest {
+
+    private static final String TOKEN = "test-token";
+
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setup() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        HashOperations<String, Object, Object> hashOps = mock(HashOperations.class);
+        when(template.<Object, Object>opsForHash()).thenReturn(hashOps);
+        Map<Object, Object> user = new HashMap<>();
+        user.put("id", "1010");
+        user.put("nickName", "可可今天不吃肉");
+        user.put("icon", "");
+        when(hashOps.entries(anyString())).thenReturn(Collections.emptyMap());
+        when(hashOps.entries(LOGIN_USER_KEY + TOKEN)).thenReturn(user);
+        mockMvc = MockMvcBuilders.standaloneSetup(new TestController())
+                .addInterceptors(new RefreshTokenInterceptor(template), new LoginInterceptor())
+                .build();
+    }
+
+    @AfterEach
+    void clear() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    void syncRequest() throws Exception {
+        mockMvc.perform(get("/me").header("authorization", TOKEN))
+                .andExpect(status().isOk())
+                .andExpect(content().string("1010"));
+        assertNull(UserHolder.getUser());
+        mockMvc.perform(get("/me")).andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void asyncRequestDoesNotLeakUser() throws Exception {
+        mockMvc.perform(get("/order/status").header("authorization", TOKEN))
+                .andExpect(request().asyncStarted());
+        //异步请求没有执行afterCompletion, 线程中也不能留下用户
+        assertNull(UserHolder.getUser());
+        mockMvc.perform(get("/me")).andExpect(status().isUnauthorized());
+    }
+
+    /**
+     * 即使线程中残留了用户(例如其他代码没有清理), 没有token的请求也拿不到
+     */
+    @Test
+    void staleUserIgnored() throws Exception {
+        UserDTO stale = new UserDTO();
+        stale.setId(1L);
+        UserHolder.saveUser(stale);
+        mockMvc.perform(get("/me")).andExpect(status().isUnauthorized());
+    }
+
+    @RestController
+    static class TestController {
+
+        /**
+         * 长轮询订单结果, 一直不返回
+         */
+        @GetMapping("/order/status")
+        public DeferredResult<String> orderStatus() {
+            return new DeferredResult<>();
+        }
+
+        @GetMapping("/me")
+        public String me() {
+            return UserHolder.getUser().getId().toString();
+        }
+    }
+}